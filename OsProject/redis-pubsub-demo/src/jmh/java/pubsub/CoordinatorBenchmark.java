@@ -0,0 +1,70 @@
+package pubsub;
+
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// 1 tick เต็มของ Coordinator (ยืม connection + heartbeat + อ่านสมาชิก + เลือก leader + ส่ง presence) กับ Redis จริง
+// ตามขนาด cluster และ --membership / --coord-mode: legacy = O(N) round trips | script, score = 2 round trips (งาน O(N) อยู่ฝั่ง Redis)
+// โหนดที่วัดมี pid มากสุด → เป็น leader และส่ง presence ทุก tick (กรณีแพงสุด)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoordinatorBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cluster { // Redis + สมาชิกจำลอง (สร้างใหม่ทุก trial)
+        @Param({"10", "100", "1000"})
+        int members;
+
+        RedisFixture redis;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            redis = new RedisFixture();
+            redis.flush();
+            redis.populate(members);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            redis.flush();
+            redis.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Node { // โหนดที่วัด: ใช้ pool ของ fixture เหมือน pool กลางของโปรเซสจริง
+        @Param({"legacy", "script", "score"})
+        String mode;
+
+        NodeApp.Coordinator coord;
+
+        @Setup(Level.Trial)
+        public void setup(Cluster c) {
+            NodeApp.Args a = "score".equals(mode)
+                    ? c.redis.args("--membership", "score", "--coord-mode", "script")
+                    : c.redis.args("--coord-mode", mode);
+            NodeApp.State st = new NodeApp.State(c.members + 1, "bench");
+            st.verbose = false;
+            coord = new NodeApp.Coordinator(a, st, c.redis.pool);
+            coord.run(); // register + tick แรก (เลือกตัวเองเป็น leader) ไม่นับรวม
+        }
+    }
+
+    @Benchmark
+    public void tick(Node n) {
+        n.coord.run();
+    }
+
+    @Benchmark
+    public void publishPresenceWithStatus(Cluster c) { // text presence แบบเดิม: zrevrange + (hget + pttl) ต่อสมาชิก + publish
+        try (Jedis j = c.redis.jedis()) {
+            NodeApp.publishPresenceWithStatus(j, c.members, c.members, 0);
+        }
+    }
+}
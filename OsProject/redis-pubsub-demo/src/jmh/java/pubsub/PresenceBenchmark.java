@@ -0,0 +1,64 @@
+package pubsub;
+
+import org.openjdk.jmh.annotations.*; //annotation ของ JMH (@Benchmark, @State, @Param ...)
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// ต้นทุนฝั่ง CPU ของ presence (ไม่แตะ Redis) ต่อขนาด cluster: สร้างข้อความ / แยกข้อความ / ประกอบตาราง
+// ทั้งหมดเป็น O(N) ต่อ tick (ผู้ส่ง) หรือต่อข้อความ (ผู้รับทุกตัว) → ถ้าช้าลงจะเห็นที่ 10k ก่อน
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PresenceBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    int members;
+
+    NodeApp.Snapshot snap;
+    String payload; // ข้อความ "presence: ..." ที่ผู้รับได้
+    NodeApp.Presence parsed;
+    NodeApp.PresenceEncoder encoder;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        List<NodeApp.Member> list = new ArrayList<>(members);
+        long now = System.currentTimeMillis();
+        for (int i = members; i >= 1; i--) { // เรียง pid มาก→น้อย เหมือน snapshot จริง | ตายบ้าง 1 ใน 10
+            list.add(new NodeApp.Member(100_000 + i, "node-" + i, i % 10 != 0, now));
+        }
+        snap = new NodeApp.Snapshot(now, list);
+        payload = NodeApp.presencePayload(100_000 + members, 100_000 + members, 0, snap);
+        parsed = NodeApp.parsePresence(payload);
+        encoder = new NodeApp.PresenceEncoder(1); // fullEvery = 1 → ส่ง FULL ทุกครั้ง (กรณีแย่สุดของ binary)
+    }
+
+    @Benchmark
+    public String presencePayload() { // ผู้ส่ง text: เหมือน publishPresenceWithStatus แต่ไม่มี round trip
+        return NodeApp.presencePayload(100_000 + members, 100_000 + members, 0, snap);
+    }
+
+    @Benchmark
+    public byte[] binaryFull() { // ผู้ส่ง binary (--presence-format binary) แบบ FULL
+        return encoder.encode(100_000 + members, 100_000 + members, 0, snap.members);
+    }
+
+    @Benchmark
+    public NodeApp.Presence parsePresence() { // ผู้รับ: แยกข้อความอย่างเดียว
+        return NodeApp.parsePresence(payload);
+    }
+
+    @Benchmark
+    public String renderPresenceTable() { // ผู้รับ: แยก + ประกอบตาราง (เหมือน renderPresenceTable แต่ไม่พิมพ์ออกจอ)
+        return NodeApp.formatPresenceTable("bench", NodeApp.parsePresence(payload));
+    }
+
+    @Benchmark
+    public String formatPresenceTable() { // ประกอบตารางอย่างเดียว (แยกต้นทุน Formatter ออกจากการ parse)
+        return NodeApp.formatPresenceTable("bench", parsed);
+    }
+}
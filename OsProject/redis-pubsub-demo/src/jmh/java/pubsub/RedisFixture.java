@@ -0,0 +1,80 @@
+package pubsub;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.embedded.RedisServer; //redis-server ที่ library แตกไฟล์มาเปิดให้ (ไม่ต้องติดตั้ง Redis เอง)
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Map;
+
+// Redis สำหรับ benchmark:
+//   -Dredis.host=... (-Dredis.port -Dredis.pass -Dredis.db) = ใช้ Redis ที่มีอยู่ | ไม่กำหนด = เปิด redis-server ชั่วคราวบน port ว่าง
+//   ก่อนวัดจะ FLUSHDB ฐาน redis.db (ค่าเริ่มต้น 15) → อย่าชี้ไปที่ฐานที่ใช้งานจริง
+final class RedisFixture implements AutoCloseable {
+    static final long LONG_MS = 3_600_000; // TTL / หน้าต่างเวลาของสมาชิกจำลอง: ยาวกว่าการวัดทั้งรอบ → ไม่มีใครตายหรือถูกลบระหว่างวัด
+
+    final RedisServer server; // null = ใช้ Redis ภายนอก
+    final String host; final int port; final String pass; final int db;
+    final JedisPool pool;
+
+    RedisFixture() throws IOException {
+        String h = System.getProperty("redis.host", "");
+        if (h.isEmpty()) {
+            try (ServerSocket s = new ServerSocket(0)) { port = s.getLocalPort(); }
+            server = new RedisServer(port);
+            server.start();
+            host = "127.0.0.1"; pass = null; db = 0;
+        } else {
+            server = null;
+            host = h;
+            port = Integer.getInteger("redis.port", 6379);
+            String p = System.getProperty("redis.pass", "");
+            pass = p.isEmpty() ? null : p;
+            db = Integer.getInteger("redis.db", 15);
+        }
+        JedisPoolConfig cfg = new JedisPoolConfig();
+        cfg.setMaxTotal(8);
+        cfg.setMaxIdle(8);
+        pool = new JedisPool(cfg, host, port, 5000, pass, db);
+    }
+
+    Jedis jedis() { return pool.getResource(); }
+
+    void flush() { try (Jedis j = jedis()) { j.flushDB(); } }
+
+    // สมาชิกจำลอง pid 1..n ทั้งสองแบบ (--membership ttl: cluster:nodes + hb + info | score: cluster:seen) ใส่ด้วย pipeline
+    void populate(int n) {
+        long now = System.currentTimeMillis();
+        try (Jedis j = jedis()) {
+            Pipeline p = j.pipelined();
+            for (long pid = 1; pid <= n; pid++) {
+                String name = "sim-" + pid;
+                p.zadd(NodeApp.ZSET_MEMBERS, pid, Long.toString(pid));
+                p.psetex(NodeApp.HB_KEY(pid), LONG_MS, Long.toString(now));
+                p.hset(NodeApp.INFO_KEY(pid), Map.of("name", name, "startedAt", Long.toString(now), "lastSeen", Long.toString(now)));
+                p.zadd(NodeApp.ZSET_SEEN, now + LONG_MS, NodeApp.SEEN_MEMBER(pid, name)); // score = deadline
+                if (pid % 1000 == 0) p.sync();
+            }
+            p.sync();
+        }
+    }
+
+    NodeApp.Args args(String... extra) { // Args ที่ชี้มาที่ Redis นี้ + ให้สมาชิกจำลองอยู่ครบตลอดการวัด
+        String[] base = {"--host", host, "--port", Integer.toString(port),
+                "--hb-ttl-ms", Long.toString(LONG_MS), "--remove-delay-ms", Long.toString(2 * LONG_MS)};
+        String[] all = new String[base.length + extra.length];
+        System.arraycopy(base, 0, all, 0, base.length);
+        System.arraycopy(extra, 0, all, base.length, extra.length);
+        NodeApp.Args a = NodeApp.Args.parse(all);
+        a.pass = pass;
+        return a;
+    }
+
+    @Override public void close() throws IOException {
+        pool.close();
+        if (server != null) server.stop();
+    }
+}
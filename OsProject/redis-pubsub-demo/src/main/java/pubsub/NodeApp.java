@@ -1,11 +1,34 @@
 package pubsub;
+import redis.clients.jedis.BinaryJedisPubSub; //subscribe แบบ byte[] สำหรับ presence แบบ binary
+import redis.clients.jedis.CommandObjects; //สร้าง argument ของคำสั่ง (PUBLISH/XADD) โดยไม่ต้องส่งทันที
+import redis.clients.jedis.Connection; //connection ดิบของ Jedis: เขียนหลายคำสั่งแล้วอ่านคำตอบทีละตัว
 import redis.clients.jedis.Jedis; //ใช้สำหรับการเชื่อมต่อและโต้ตอบกับ Redis server
+import redis.clients.jedis.JedisPool; //pool ของ connection ที่ AUTH แล้ว ยืมไปใช้แล้วคืน ไม่ต้องต่อใหม่ทุกรอบ
+import redis.clients.jedis.JedisPoolConfig; //ตั้งค่าขนาด pool และเวลารอยืม connection
 import redis.clients.jedis.JedisPubSub; //ใช้สำหรับการสมัครรับข้อความ (subscribe) และจัดการกับข้อความที่ได้รับจาก Redis Pub/Sub //คลาสจากไลบรารี Jedis เพื่อคุยกับ Redis
+import redis.clients.jedis.Pipeline; //ส่งหลายคำสั่งรวดเดียวแล้วค่อยอ่านผลทีเดียว (1 round trip)
+import redis.clients.jedis.StreamEntryID; //id ของข้อความใน stream (เวลา-ลำดับ) ใช้จำว่าอ่าน/ack ถึงไหนแล้ว
+import redis.clients.jedis.exceptions.JedisDataException; //error ที่ Redis ตอบกลับ (เช่น BUSYGROUP)
+import redis.clients.jedis.exceptions.JedisNoScriptException; //Redis ไม่รู้จัก sha ของ script (เช่น restart) ต้องส่ง script ไปใหม่
+import redis.clients.jedis.params.XAddParams; //XADD MAXLEN ~ = ตัดข้อความเก่าใน stream แบบประมาณ (ถูกกว่าตัดเป๊ะ)
+import redis.clients.jedis.params.XAutoClaimParams; //XAUTOCLAIM COUNT = ย้าย pending ที่ค้างของ consumer เก่ามาทีละชุด
+import redis.clients.jedis.params.XReadGroupParams; //XREADGROUP COUNT/BLOCK = อ่านทีละชุด รอได้ถ้ายังไม่มี
+import redis.clients.jedis.resps.StreamConsumerInfo; //XINFO CONSUMERS: pending + เวลาที่เงียบไปของแต่ละ consumer
+import redis.clients.jedis.resps.StreamEntry; //ข้อความ 1 ชิ้นจาก stream (id + fields)
+import redis.clients.jedis.resps.StreamGroupInfo; //XINFO GROUPS: group ทั้งหมดของ stream
 
-// import java.lang.management.ManagementFactory; //ใช้สำหรับดึงข้อมูลเกี่ยวกับ process ปัจจุบัน เช่น PID
+import com.sun.net.httpserver.HttpServer; //HTTP server เล็ก ๆ ที่มากับ JDK (หน้า /metrics)
+import java.lang.management.ManagementFactory; //ใช้สำหรับดึงข้อมูลเกี่ยวกับ process ปัจจุบัน เช่น PID | MBeanServer สำหรับ JMX
+import java.net.InetSocketAddress; //host:port ที่ /metrics รอรับ
+import javax.management.*; //DynamicMBean: ส่งค่า metrics ออกทาง JMX (jconsole / VisualVM)
 import java.time.Instant; //ใช้สำหรับการจัดการกับเวลาและวันที่ (iso)
 import java.util.*; //ใช้สำหรับการจัดการกับข้อมูลต่าง ๆ เช่น List, Map, Random
 import java.util.concurrent.*; //ใช้สำหรับการจัดการกับเธรดและการทำงานแบบขนาน (concurrent)
+import java.util.concurrent.atomic.AtomicInteger; //นับจำนวนบรรทัด log ที่ยังไม่ได้พิมพ์ (ใช้ตอน flush)
+import java.util.concurrent.atomic.AtomicLong; //เลข seq ของข้อความ (หลายเธรดส่งพร้อมกันได้)
+import java.util.concurrent.locks.LockSupport; //พักเป็นนาโนวินาที (คุมอัตราส่งของตัวสร้างข้อความ)
+import java.util.concurrent.atomic.LongAdder; //ตัวนับที่หลายเธรดเพิ่มพร้อมกันได้โดยไม่แย่งกัน (นับข้อความที่ทิ้ง)
+import java.util.function.Consumer; //handler ของแต่ละช่อง รับข้อความ 1 ชิ้น
 import java.util.stream.Collectors; //ใช้สำหรับการจัดการกับข้อมูลในรูปแบบของสตรีม (stream) และการแปลงข้อมูล
 
 public class NodeApp{ 
@@ -16,6 +39,43 @@ public class NodeApp{
         int port = 6379; 
         String pass = null;
         String name = "node"; // กำหนดค่าเริ่มต้น: ต่อ Redis ที่ localhost:6379, ไม่มีรหัสผ่าน, และชื่อโหนด node
+        int poolSize = 8; // จำนวน connection สูงสุดใน pool (อย่างน้อย minPoolSize: ตัวที่ถือไว้ตลอด + Publisher + Coordinator + shutdown hook)
+        int timeoutMs = 2000; // timeout ของ socket และเวลารอยืม connection จาก pool (มิลลิวินาที)
+        long retryMaxMs = 10_000; // ต่อ Redis ไม่ได้ → รอแบบเพิ่มเป็นเท่าตัวจนถึงค่านี้
+        String coordMode = "legacy"; // legacy = ถาม Redis ทีละสมาชิก | script = Lua script เดียวต่อ tick ได้ snapshot ทั้งหมด
+        String membership = "ttl"; // ttl = cluster:nodes + hb:<pid> (TTL) | score = cluster:seen ที่ score = เวลา heartbeat ล่าสุด
+        String presence = "all"; // all = ทุกโหนดส่ง presence ทุก tick | leader = leader ส่งคนเดียว ที่เหลือจำจาก presence ที่ได้รับ
+        String presenceFormat = "text"; // text = "presence: ..." ที่ช่อง presence | binary = delta แบบ byte[] ที่ช่อง presence:bin
+        int presenceFullEvery = 10; // binary: ส่งตารางเต็มทุก ๆ กี่ข้อความ (ที่เหลือเป็น delta)
+        String election = "max-pid"; // max-pid = pid มากสุดที่ alive (แต่ละโหนดคิดเอง) | lease = ใครได้คีย์ cluster:leader (SET NX PX) คนนั้นเป็น leader
+        long leaseMs = 3000; // อายุ lease ของ leader (ต้องมากกว่ารอบ tick เพราะ leader ต่ออายุทุก tick) = เวลา failover สูงสุด
+        // เวลาทั้งหมดเป็นมิลลิวินาที (เดิม hard-code: tick 2s, heartbeat TTL 3s, ลบสมาชิกหลัง 20s, publish ทุก 1s)
+        long tickMs = 2000; // รอบของ Coordinator (heartbeat + เลือก leader + presence)
+        long hbTtlMs = 3000; // อายุ heartbeat (ต่ำสุด) ถ้า tick มาช้า/กระตุก จะยืดให้อัตโนมัติ
+        long removeDelayMs = 20_000; // หายไปนานเกินนี้ค่อยลบชื่อออกจากรายการสมาชิก
+        long publishMs = 1000; // รอบของ Publisher
+        String failureDetector = "ttl"; // ttl = มี heartbeat ใน TTL = alive | phi = phi accrual จากระยะห่างของ heartbeat ที่เห็นจริง
+        double phiThreshold = 8.0; // phi เกินนี้ = ถือว่าตาย (8 ≈ โอกาสตัดสินผิด 1 ใน 10^8)
+        String dispatch = "async"; // async = thread I/O แค่เข้าคิว แล้ว worker ของแต่ละช่องจัดการ | inline = จัดการบน thread I/O เลย (แบบเดิม)
+        int queueSize = 1024; // ความจุคิวต่อช่อง (async)
+        String overflow = "coalesce"; // คิวเต็ม: coalesce = presence เก็บแค่ล่าสุด ช่องอื่นทิ้งเก่าสุด | drop-oldest = ทิ้งเก่าสุดทุกช่อง | block = รอจนมีที่ว่าง
+        String publishMode = "interval"; // interval = ส่ง 1 ข้อความทุก --publish-ms (แบบเดิม) | batch = เข้าคิวแล้วส่งเป็นชุดด้วย pipeline
+        int publishRate = 10_000; // batch: ตัวสร้างข้อความในตัวส่งกี่ข้อความ/วินาที (0 = ไม่สร้าง ใช้ผ่าน BatchPublisher.offer อย่างเดียว)
+        int batchSize = 256; // batch: ส่งเมื่อครบกี่ข้อความ
+        long batchMs = 5; // batch: หรือเมื่อข้อความแรกของชุดรอครบกี่ ms
+        int publishQueue = 16_384; // batch: จำนวน buffer ที่จองไว้ = ข้อความที่ค้างส่งได้สูงสุด
+        int msgBytes = 96; // batch: ขนาดข้อความคงที่ (byte) ที่เหลือจาก header เติมด้วย body / ช่องว่าง
+        String backpressure = "block"; // batch คิวเต็ม: block = ผู้ส่งรอ | drop = ทิ้งแล้วนับ
+        String transport = "pubsub"; // broadcast + control: pubsub = PUBLISH/SUBSCRIBE (หลุดแล้วข้อความหาย) | streams = XADD/XREADGROUP (อ่านต่อจากที่ ack ล่าสุด)
+        long streamMaxLen = 100_000; // streams: XADD MAXLEN ~ (เก็บข้อความล่าสุดประมาณเท่านี้ต่อ stream)
+        int readCount = 512; // streams: XREADGROUP COUNT = อ่านสูงสุดกี่ข้อความต่อครั้ง
+        int readBlockMs = 1000; // streams: XREADGROUP BLOCK (ต้องน้อยกว่า --timeout-ms ไม่งั้น socket timeout ก่อน)
+        String instanceId = ""; // streams: group = node:<name>:<id> | ว่าง = pid ของโหนดแรก (group ใหม่ทุกครั้งที่เริ่ม) | กำหนดเอง = restart แล้วอ่านต่อจาก group เดิม
+        int nodes = 1; // จำลองกี่โหนดในโปรเซสเดียว (ชื่อ <name>-0 .. <name>-(N-1)) ใช้ pool + Subscriber ร่วมกัน
+        int metricsPort = 0; // > 0 = เปิด http://<metrics-host>:<port>/metrics (รูปแบบ Prometheus) | JMX เปิดเสมอ
+        String metricsHost = "127.0.0.1"; // ค่าเริ่มต้นรับเฉพาะในเครื่อง
+        boolean probe = false; // --probe on: broadcast ใส่ seq + เวลาส่ง ผู้รับวัด latency / ข้อความหาย / สลับลำดับ
+        long probeReportMs = 5000; // --probe: พิมพ์สรุปทุกกี่ ms (รายงานสุดท้ายตอนปิด)
 
         static Args parse(String[] a) { //ดึงค่าจาก cmd ที่ส่งมาจาก main
             Args args = new Args(); 
@@ -27,16 +87,117 @@ public class NodeApp{
             if (map.containsKey("--port")) {args.port = Integer.parseInt(map.get("--port"));}
             if (map.containsKey("--pass")){ args.pass = map.get("--pass");}
             if (map.containsKey("--name")){ args.name = map.get("--name");}
+            if (map.containsKey("--pool-size")) {args.poolSize = Integer.parseInt(map.get("--pool-size"));} // ไม่ต่ำกว่า minPoolSize (ดูท้าย parse)
+            if (map.containsKey("--timeout-ms")) {args.timeoutMs = Integer.parseInt(map.get("--timeout-ms"));}
+            if (map.containsKey("--retry-max-ms")) {args.retryMaxMs = Long.parseLong(map.get("--retry-max-ms"));}
+            if (map.containsKey("--coord-mode")) {args.coordMode = map.get("--coord-mode");}
+            if (map.containsKey("--membership")) {args.membership = map.get("--membership");} // ทุกโหนดใน cluster ต้องใช้ค่าเดียวกัน
+            if (map.containsKey("--presence")) {args.presence = map.get("--presence");}
+            if (map.containsKey("--presence-format")) {args.presenceFormat = map.get("--presence-format");}
+            if (map.containsKey("--presence-full-every")) {args.presenceFullEvery = Integer.parseInt(map.get("--presence-full-every"));}
+            if (map.containsKey("--election")) {args.election = map.get("--election");}
+            if (map.containsKey("--lease-ms")) {args.leaseMs = Long.parseLong(map.get("--lease-ms"));}
+            if (map.containsKey("--tick-ms")) {args.tickMs = Long.parseLong(map.get("--tick-ms"));}
+            if (map.containsKey("--hb-ttl-ms")) {args.hbTtlMs = Long.parseLong(map.get("--hb-ttl-ms"));}
+            if (map.containsKey("--remove-delay-ms")) {args.removeDelayMs = Long.parseLong(map.get("--remove-delay-ms"));}
+            if (map.containsKey("--publish-ms")) {args.publishMs = Long.parseLong(map.get("--publish-ms"));}
+            if (map.containsKey("--failure-detector")) {args.failureDetector = map.get("--failure-detector");}
+            if (map.containsKey("--phi-threshold")) {args.phiThreshold = Double.parseDouble(map.get("--phi-threshold"));}
+            if (map.containsKey("--dispatch")) {args.dispatch = map.get("--dispatch");}
+            if (map.containsKey("--queue-size")) {args.queueSize = Math.max(1, Integer.parseInt(map.get("--queue-size")));}
+            if (map.containsKey("--overflow")) {args.overflow = map.get("--overflow");}
+            if (map.containsKey("--publish-mode")) {args.publishMode = map.get("--publish-mode");}
+            if (map.containsKey("--publish-rate")) {args.publishRate = Integer.parseInt(map.get("--publish-rate"));}
+            if (map.containsKey("--batch-size")) {args.batchSize = Math.max(1, Integer.parseInt(map.get("--batch-size")));}
+            if (map.containsKey("--batch-ms")) {args.batchMs = Math.max(1, Long.parseLong(map.get("--batch-ms")));}
+            if (map.containsKey("--publish-queue")) {args.publishQueue = Math.max(1, Integer.parseInt(map.get("--publish-queue")));}
+            if (map.containsKey("--msg-bytes")) {args.msgBytes = Integer.parseInt(map.get("--msg-bytes"));}
+            if (map.containsKey("--backpressure")) {args.backpressure = map.get("--backpressure");}
+            if (map.containsKey("--transport")) {args.transport = map.get("--transport");} // ทุกโหนดใน cluster ต้องใช้ค่าเดียวกัน
+            if (map.containsKey("--stream-maxlen")) {args.streamMaxLen = Long.parseLong(map.get("--stream-maxlen"));}
+            if (map.containsKey("--read-count")) {args.readCount = Math.max(1, Integer.parseInt(map.get("--read-count")));}
+            if (map.containsKey("--read-block-ms")) {args.readBlockMs = Integer.parseInt(map.get("--read-block-ms"));}
+            args.readBlockMs = Math.max(1, Math.min(args.readBlockMs, args.timeoutMs / 2)); // BLOCK นานเกิน socket timeout = error ทุกครั้งที่เงียบ
+            if (map.containsKey("--instance-id")) {args.instanceId = map.get("--instance-id");} // ห้ามซ้ำกับโปรเซสอื่นที่ยังทำงานอยู่ (ไม่งั้นแบ่งข้อความกัน)
+            if (map.containsKey("--nodes")) {args.nodes = Math.max(1, Integer.parseInt(map.get("--nodes")));}
+            if (map.containsKey("--metrics-port")) {args.metricsPort = Integer.parseInt(map.get("--metrics-port"));}
+            if (map.containsKey("--metrics-host")) {args.metricsHost = map.get("--metrics-host");}
+            if (map.containsKey("--probe")) {args.probe = "on".equals(map.get("--probe"));}
+            if (map.containsKey("--probe-report-ms")) {args.probeReportMs = Long.parseLong(map.get("--probe-report-ms"));}
+            // หลายโหนดยืม connection พร้อมกัน (tick สั้น ๆ) → ขยาย pool ถ้าไม่ได้กำหนดเอง
+            if (args.nodes > 1 && !map.containsKey("--pool-size")) {args.poolSize = Math.max(args.poolSize, Math.min(64, 8 + args.nodes / 16));}
+            // phi ต้องเห็น lastSeen ของทุกคนทุก tick (มีใน snapshot) → legacy ใช้ไม่ได้ ขยับไปใช้ script
+            if ("phi".equals(args.failureDetector) && "legacy".equals(args.coordMode)) {args.coordMode = "script";}
+            // binary ต้องสร้างจาก snapshot → โหมด legacy (ถามทีละคน) ใช้ไม่ได้ ขยับไปใช้ script แทน
+            if ("binary".equals(args.presenceFormat) && "legacy".equals(args.coordMode)) {args.coordMode = "script";}
+            args.poolSize = Math.max(args.poolSize, minPoolSize(args)); // น้อยกว่านี้ = งานแย่ง connection กันจนยืมไม่ทัน timeout
             return args; // args = ตัวอ่านและเก็บค่าคอนฟิกง่าย ๆ จากบรรทัดคำสั่ง
         }
     }
 
     // --------- Redis helpers --------- 
-    static Jedis newJedis(String host, int port, String pass) { 
-        Jedis j = new Jedis(host, port);  // สร้าง client เชื่อมไปยัง Redis server | class Jedis ใช้สำหรับการเชื่อมต่อและโต้ตอบกับ Redis server
-        if (pass != null && !pass.isEmpty()){ j.auth(pass);}// ถ้ามีการตั้งรหัสผ่าน ทำการยืนยันตัวตน
-        return j; // คืนค่า client(อ็อบเจกต์ Jedis) ที่พร้อมใช้งาน
-    } 
+    // connection ที่ถูกยืมพร้อมกันได้ในโปรเซสเดียว (ตามโหมดที่เลือก):
+    //   ถือไว้ตลอด: Subscriber + PresenceListener (binary) + StreamSubscriber (streams)
+    //   ยืมเป็นรอบ: Coordinator + Publisher (interval) หรือ flusher (batch) | shutdown hook อีก 1
+    //   --nodes > 1: tick ของแต่ละโหนดถูกเกลี่ยทั่วรอบ → นับแค่ 1 ชุด (ส่วนเกินรอใน pool ไม่เกิน --timeout-ms)
+    static int heldConnections(Args a) {
+        return 1 + ("binary".equals(a.presenceFormat) ? 1 : 0) + ("streams".equals(a.transport) ? 1 : 0);
+    }
+
+    static int minPoolSize(Args a) { return heldConnections(a) + 2 + 1; } // + Coordinator + Publisher/flusher + shutdown hook
+
+    static JedisPool newPool(Args a) { // pool กลางของทั้งโปรเซส: connection ถูกสร้าง + AUTH ครั้งเดียวแล้ววนใช้ซ้ำ
+        JedisPoolConfig cfg = new JedisPoolConfig();
+        cfg.setMaxTotal(a.poolSize);
+        cfg.setMaxIdle(a.poolSize); // ไม่ปิด connection ที่ว่างทิ้ง ไม่งั้นรอบถัดไปต้องต่อใหม่อีก
+        cfg.setMinIdle(Math.min(2, a.poolSize)); // นับเฉพาะตัวที่ว่าง: Coordinator + Publisher/flusher (ตัวที่ถือไว้ตลอดไม่เคยว่าง นับรวม = evictor เปิดเพิ่มเกินจำเป็น)
+        cfg.setMaxWait(java.time.Duration.ofMillis(a.timeoutMs)); // รอยืมนานสุดเท่า timeout แล้ว error (เข้า backoff)
+        cfg.setTestOnBorrow(false); // ไม่ PING ทุกครั้งที่ยืม (เสีย 1 round trip) | ตัวที่พังจะถูกทิ้งตอนคืนเอง
+        cfg.setTestWhileIdle(true); // ตัวที่ว่างอยู่ให้ evictor ตรวจเป็นระยะแทน
+        // ค่าเริ่มต้นปิดตัวที่ว่างเกิน 60s โดยไม่สนใจ minIdle → ensureMinIdle เปิดใหม่ทุกรอบ (pool เป็น LIFO ตัวท้าย ๆ ว่างตลอด)
+        // ปิดการปิดตามเวลาว่างทั้งสองแบบ: pool ไม่เกิน --pool-size อยู่แล้ว evictor เหลือแค่ PING ตัวที่ว่าง ตัวที่พังถูกทิ้ง
+        cfg.setMinEvictableIdleDuration(java.time.Duration.ofMillis(-1));
+        cfg.setSoftMinEvictableIdleDuration(java.time.Duration.ofMillis(-1));
+        String pass = (a.pass != null && !a.pass.isEmpty()) ? a.pass : null;
+        return new JedisPool(cfg, a.host, a.port, a.timeoutMs, pass);
+    }
+
+    static XAddParams streamTrim(Args a) { return XAddParams.xAddParams().maxLen(a.streamMaxLen).approximateTrimming(); }
+
+    static void send(Jedis j, Args a, String ch, String msg) { // ส่ง broadcast/control ตาม --transport
+        METRICS.call(1);
+        if ("streams".equals(a.transport)) j.xadd(streamOf(ch), streamTrim(a), Map.of(STREAM_FIELD, msg));
+        else j.publish(ch, msg);
+    }
+
+    static void send(Pipeline p, Args a, String ch, String msg) { // แบบเดียวกันแต่อยู่ใน pipeline
+        if ("streams".equals(a.transport)) p.xadd(streamOf(ch), streamTrim(a), Map.of(STREAM_FIELD, msg));
+        else p.publish(ch, msg);
+    }
+
+    static class Backoff { // รอก่อนลองใหม่แบบเพิ่มเป็นเท่าตัว 200ms → 400ms → ... → max แทนการรอ 2 วินาทีตายตัว
+        final long minMs, maxMs;
+        long curMs;
+        Backoff(long minMs, long maxMs) { this.minMs = minMs; this.maxMs = Math.max(minMs, maxMs); this.curMs = minMs; }
+        long next() { long d = curMs; curMs = Math.min(maxMs, curMs * 2); return d; } // คืนค่ารอบนี้ แล้วเพิ่มไว้สำหรับรอบหน้า
+        void reset() { curMs = minMs; } // ต่อได้แล้ว กลับไปเริ่มที่ค่าน้อยสุด
+    }
+
+    static class LuaScript { // Lua script ที่โหลดไว้ใน Redis แล้วเรียกด้วย EVALSHA (ไม่ต้องส่งตัว script ทุกครั้ง)
+        final String src;
+        volatile String sha; // null = ยังไม่ได้โหลด
+        LuaScript(String src) { this.src = src; }
+
+        Object eval(Jedis j, List<String> keys, List<String> argv) {
+            if (sha == null) sha = j.scriptLoad(src);
+            try {
+                return j.evalsha(sha, keys, argv);
+            } catch (JedisNoScriptException e) { // Redis restart / SCRIPT FLUSH → โหลดใหม่แล้วลองอีกครั้ง
+                sha = j.scriptLoad(src);
+                return j.evalsha(sha, keys, argv);
+            }
+        }
+    }
 
     // --------- Keys/Channels ---------
     static final String ZSET_MEMBERS = "cluster:nodes";     // score = pid (ยังใช้เดิม แต่เราจะเก็บ lastSeen ใน HSET) 
@@ -48,9 +209,44 @@ public class NodeApp{
     static final String CH_BROADCAST = "broadcast"; 
     static final String CH_CONTROL   = "control"; 
     static final String CH_PRESENCE  = "presence";          // สแนปช็อต presence
+    static final byte[] CH_PRESENCE_BIN = "presence:bin".getBytes(java.nio.charset.StandardCharsets.UTF_8); // presence แบบ binary (FULL/DELTA)
+    static final byte[] CH_BROADCAST_BIN = CH_BROADCAST.getBytes(java.nio.charset.StandardCharsets.UTF_8); // --publish-mode batch ส่งเป็น byte[]
+    // --transport streams: broadcast/control เป็น stream แทนช่อง pubsub (presence ยังเป็น pubsub เพราะใช้แค่ตารางล่าสุด)
+    static final String STREAM_BROADCAST = "stream:broadcast";
+    static final String STREAM_CONTROL = "stream:control";
+    static final String STREAM_FIELD = "m"; // ข้อความอยู่ใน field เดียว
+    static final byte[] STREAM_BROADCAST_BIN = STREAM_BROADCAST.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    static final byte[] STREAM_FIELD_BIN = STREAM_FIELD.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    static String streamOf(String ch) { return CH_CONTROL.equals(ch) ? STREAM_CONTROL : STREAM_BROADCAST; }
+    static String channelOf(String stream) { return STREAM_CONTROL.equals(stream) ? CH_CONTROL : CH_BROADCAST; }
     static String HB_KEY(long pid) { return "hb:" + pid; }  // สร้างชื่อคีย์สำหรับ heartbeat (มี TTL) | TTL heartbeat
     static String INFO_KEY(long pid){ return "node:info:" + pid; } // สร้างคีย์ตระกูล HSET สำหรับบันทึกข้อมูลโหนด | HSET name, startedAt, lastSeen เป็นตัวเก็บข้อมูล process
 
+    // --election lease: leader = เจ้าของคีย์ LEADER_KEY (ค่า "<pid>:<token>", มี PX) | token มาจาก INCR LEADER_EPOCH_KEY เพิ่มขึ้นทุกครั้งที่เปลี่ยนมือ
+    static final String LEADER_KEY = "cluster:leader";
+    static final String LEADER_EPOCH_KEY = "cluster:leader:epoch";
+
+    // --membership score: ZSET เดียวแทน cluster:nodes + hb:<pid> + node:info:<pid>
+    // member = "<pid>:<name>" (ได้ชื่อมาพร้อมกันไม่ต้อง HGET) | score = deadline (ms) = เวลา heartbeat + TTL ของผู้ส่งเอง → heartbeat = ZADD ครั้งเดียว
+    // alive = score > now (TTL แบบ adaptive ของแต่ละโหนดเหมือน PSETEX hb:<pid> ในโหมด ttl) | ลบตัวที่เลย deadline นาน = ZREMRANGEBYSCORE -inf (now - REMOVE_DELAY)
+    // เวลาทั้งเขียนและอ่านมาจาก TIME ของ Redis (ใน Lua) ไม่ใช่นาฬิกาของแต่ละเครื่อง → นาฬิกาเครื่องเพี้ยนไม่ทำให้ ALIVE/DISAPPEAR ผิด
+    static final String ZSET_SEEN = "cluster:seen";
+    static String SEEN_MEMBER(long pid, String name) { return pid + ":" + name; }
+    static long seenPid(String member) { int i = member.indexOf(':'); return Long.parseLong(i < 0 ? member : member.substring(0, i)); }
+    static String seenName(String member) { int i = member.indexOf(':'); return i < 0 ? "node-" + member : member.substring(i + 1); }
+
+    // Lua: ZADD member ด้วย deadline = เวลา Redis + ARGV[2] ms (ARGV[3] = "XX" → อัพเดตเฉพาะที่มีอยู่) | คืนเวลา Redis (ms)
+    static final LuaScript SEEN_SCRIPT = new LuaScript(String.join("\n",
+            "local t = redis.call('TIME')",
+            "local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)",
+            "if ARGV[3] == 'XX' then redis.call('ZADD', KEYS[1], 'XX', now + tonumber(ARGV[2]), ARGV[1])",
+            "else redis.call('ZADD', KEYS[1], now + tonumber(ARGV[2]), ARGV[1]) end",
+            "return now"));
+
+    static void touchSeen(Jedis j, String member, long ttlMs, boolean xx) { // heartbeat ของ --membership score (1 round trip) | ttlMs < 0 = หมดอายุแล้ว
+        SEEN_SCRIPT.eval(j, List.of(ZSET_SEEN), List.of(member, Long.toString(ttlMs), xx ? "XX" : ""));
+    }
+
     // --------- Node State ---------
     static class State { // Process 
         final long pid; 
@@ -58,70 +254,918 @@ public class NodeApp{
         // ตัวแปร volatile = บอก JVM ว่าค่าตัวนี้อาจถูกแก้จากหลายเธรด ต้องอ่าน/เขียนให้เห็นผลร่วมกันทันที (เหมาะกับแฟล็กสถานะ)
         volatile boolean isLeader = false; 
         volatile long leaderPid = -1; 
+        volatile long fencingToken = 0; // --election lease: token ของ leader ปัจจุบัน (เพิ่มขึ้นเรื่อย ๆ ไม่ย้อนกลับ) ข้อความที่ token เก่ากว่านี้ถือว่าหมดอายุ
         volatile boolean shuttingDown = false;
+        volatile long leaderAt = 0; // เวลาเครื่องเรา (ms) ที่ตัดสิน leader เองล่าสุด (tick เต็ม / ได้ประกาศ) → presence ที่ได้ก่อนหน้านี้ถือว่าเก่ากว่า
+        boolean verbose = true; // --nodes: พิมพ์ log เฉพาะโหนดแรก (โหนดอื่นพิมพ์แค่ error)
+        final MembershipView view = new MembershipView(); // สมาชิกล่าสุดจาก presence ที่ได้รับ (ใช้กับ --presence leader)
 
         State(long pid, String name) { this.pid = pid; this.name = name; } 
     }
 
+    static final List<State> LOCAL_NODES = new CopyOnWriteArrayList<>(); // ทุกโหนดในโปรเซสนี้ (ปกติ 1 | --nodes N)
+
+    static class MembershipView { // สำเนาสมาชิกในหน่วยความจำ อัพเดตจากช่อง presence → follower ไม่ต้องถาม Redis
+        volatile long maxAgeMs = 5_000; // ไม่ได้ presence นานเกิน 2.5 tick = leader น่าจะหายไป → กลับไปถาม Redis เอง (main ตั้งตาม --tick-ms)
+
+        volatile Presence last; // presence ล่าสุด (null = ยังไม่เคยได้รับ)
+        volatile long updatedAt; // เวลาเครื่องเราตอนได้รับ (ms)
+
+        void update(Presence pr) { last = pr; updatedAt = System.currentTimeMillis(); }
+
+        void touch(long leaderPid) { // ได้ข้อความจาก leader คนเดิมแต่ยังอ่านตารางไม่ได้ (รอ FULL) → ถือว่า leader ยังอยู่
+            Presence pr = last;
+            if (pr != null && pr.leaderPid == leaderPid) updatedAt = System.currentTimeMillis();
+        }
+
+        boolean fresh(long now) { return last != null && now - updatedAt <= maxAgeMs; }
+
+        long leaderPid() { Presence pr = last; return pr == null ? -1 : pr.leaderPid; }
+
+        List<Long> aliveMembers() { // แทน aliveMembers(j) โดยไม่แตะ Redis
+            Presence pr = last;
+            List<Long> alive = new ArrayList<>();
+            if (pr != null) for (Member m : pr.members) if (m.alive) alive.add(m.pid);
+            return alive;
+        }
+    }
+
     // --------- Subscriber (รับข้อความ + presence) ---------
     static class Subscriber implements Runnable { // thread รับข้อความ 
-        final Args args; final State st;
-        Subscriber(Args a, State s) { this.args = a; this.st = s; } //เอาตัวที่รับมาเก็บไว้ในclass
+        final Args args; final State st; final JedisPool pool;
+        final Dispatcher dispatcher; // null = --dispatch inline
+        final Lane<Presence> binPresence; // ตารางที่ PresenceListener ถอดแล้ว รอพิมพ์ (null = inline)
+        final ProbeTracker probe; // --probe on (null = ปิด)
+        Subscriber(Args a, State s, JedisPool p, ProbeTracker probe) { //เอาตัวที่รับมาเก็บไว้ในclass
+            this.args = a; this.st = s; this.pool = p; this.probe = probe;
+            if ("async".equals(a.dispatch)) {
+                dispatcher = new Dispatcher(a, s.name);
+                dispatcher.register(CH_CONTROL, false, this::onControl);
+                dispatcher.register(CH_PRESENCE, true, this::onPresence);
+                // broadcast ยังไม่มีใครใช้ → ไม่ลงทะเบียน (offer แล้วทิ้งทันที ไม่กินคิว)
+                binPresence = new Lane<>(s.name, "presence-bin", a.queueSize, Lane.mode(a.overflow, true),
+                        pr -> printPresenceTable(st.name, pr));
+            } else {
+                dispatcher = null; binPresence = null;
+            }
+        }
+
+        // connection นี้ใช้ร่วมกันทุกโหนดในโปรเซส (--nodes): ถอดข้อความครั้งเดียวแล้วกระจายให้ทุก State ใน LOCAL_NODES
+        // st = โหนดแรก ใช้เป็นชื่อใน log
+        void onControl(String msg) {
+            if (msg.startsWith("control:kill")) { 
+                long target = Long.parseLong(msg.split("\\s+")[1]); //msg[1]==pid | PUBLISH control "control:kill 22556"
+                for (State s : LOCAL_NODES) {
+                    if (target == s.pid) { //เทียบกับของ
+                        LOG.printf("[%-10s|CTRL] got KILL → exit%n", s.name);
+                        shutdownNow(s); 
+                    }
+                }
+            }  else {
+                if (msg.startsWith("control:leader") && "lease".equals(args.election)) { // leader ใหม่ได้ lease แล้ว
+                    for (State s : LOCAL_NODES) onLeaderAnnounce(s, msg);
+                } else if (msg.startsWith("control:leader")) { // max-pid: มีคนเห็น leader เปลี่ยน → presence ที่จำไว้เก่าแล้ว tick ถัดไปตัดสินจาก Redis เอง
+                    long now = System.currentTimeMillis();
+                    for (State s : LOCAL_NODES) s.leaderAt = now;
+                }
+                LOG.printf("[%-10s|CTRL] %s%n", st.name, msg); //%-10s = เว้นวรรค10ช่อง | %n = ขึ้นบรรทัดใหม่
+            }
+        }
+
+        void onPresence(String msg) {
+            // รูปแบบข้อความ: "presence: <leaderPid>|pid1:name1:alive,pid2:name2:alive,..."
+            long minToken = "lease".equals(args.election) ? st.fencingToken : 0;
+            Presence pr = renderPresenceTable(st.name, msg, minToken); //เรียก renderPresenceTable เพื่อพิมพ์ตารางสมาชิก
+            if (pr != null) for (State s : LOCAL_NODES) if (!fenced(args, s, pr)) s.view.update(pr); //จำไว้ใช้แทนการถาม Redis (--presence leader) | Presence อ่านอย่างเดียว ใช้ร่วมกันได้
+        }
+
+        void deliver(String ch, String msg) { deliver(ch, msg, null); } // จาก pubsub
+
+        void deliver(String ch, String msg, Runnable ack) { // ack = เรียกเมื่อจัดการเสร็จ (StreamSubscriber: XACK) | null = ไม่ต้อง
+            METRICS.received(ch);
+            if (probe != null && CH_BROADCAST.equals(ch) && msg.startsWith("probe|")) { // วัดบน thread ที่รับเลย (ไม่รวมเวลารอในคิว dispatch)
+                probe.record(msg, wallNanos());
+            } else if (dispatcher != null) { // async: แค่เข้าคิวแล้วกลับไปอ่าน socket ต่อ | ack ตอน worker จัดการเสร็จ
+                dispatcher.offer(ch, msg, ack);
+                return;
+            } else if (CH_CONTROL.equals(ch)) onControl(msg);
+            else if (CH_PRESENCE.equals(ch)) onPresence(msg);
+            if (ack != null) ack.run();
+        }
+
+        void deliverPresence(Presence pr) { // จาก PresenceListener (binary) | view อัพเดตไปแล้ว เหลือแค่พิมพ์
+            if (binPresence != null) binPresence.offer(pr);
+            else printPresenceTable(st.name, pr);
+        }
 
         @Override public void run() {
-            while (!st.shuttingDown && !Thread.currentThread().isInterrupted()) {// วนลูปไปเรื่อย ๆ จนกว่าจะปิดตัว | thread ปัจจุบันถูก interrupt แล้วหรือยัง ถ้าไม่ถูก interrupt มีค่า flase
-            Jedis jedis = newJedis(args.host, args.port, args.pass);// สร้าง client เชื่อมไปยัง Redis server 
-                try (jedis) {   /*try-with-resources เพื่อจัดการ resource อัตโนมัติ client close
-                                ใช้ jedis เป็น resource ภายใน block
-                                เมื่อออกจาก block ไม่ว่าปกติหรือ error → jedis.close() จะถูกเรียกอัตโนมัติ
+            Backoff backoff = new Backoff(200, args.retryMaxMs);
+            while (!allDown() && !Thread.currentThread().isInterrupted()) {// วนลูปไปเรื่อย ๆ จนกว่าจะปิดตัว | thread ปัจจุบันถูก interrupt แล้วหรือยัง ถ้าไม่ถูก interrupt มีค่า flase
+                try (Jedis jedis = pool.getResource()) {   /*ยืม connection จาก pool (subscribe จะถือไว้จนกว่าจะหลุด)
+                                try-with-resources → jedis.close() = คืนเข้า pool (ถ้า connection พังจะถูกทิ้ง ไม่คืน)
                                 ป้องกันปัญหา resource leak (เช่น connection ไม่ถูกปิด)*/
 
                     JedisPubSub jps = new JedisPubSub() {// สร้างตัวรับข้อความ
                         @Override public void onMessage(String ch, String msg) { //เมื่อมีข้อความใหม่เข้ามา | รับข้อความจากช่อง CH_BROADCAST, CH_CONTROL, CH_PRESENCE
-                          if (CH_CONTROL.equals(ch)) { 
-                               if (msg.startsWith("control:kill")) { 
-                                    long target = Long.parseLong(msg.split("\\s+")[1]); //msg[1]==pid | PUBLISH control "control:kill 22556"
-                                    if (target == st.pid) { //เทียบกับของ
-                                        System.out.printf("[%-10s|CTRL] got KILL → exit%n", st.name);
-                                        shutdownNow(st); 
-                                    }
-                                }  else {
-                                    System.out.printf("[%-10s|CTRL] %s%n", st.name, msg); //%-10s = เว้นวรรค10ช่อง | %n = ขึ้นบรรทัดใหม่
-                                }
-                            } else if (CH_PRESENCE.equals(ch)) { //
-                                // รูปแบบข้อความ: "presence: <leaderPid>|pid1:name1:alive,pid2:name2:alive,..."
-                                renderPresenceTable(st.name, msg); //เรียก renderPresenceTable เพื่อพิมพ์ตารางสมาชิก
-                            }
+                            deliver(ch, msg);
                         }
                     };
+                    backoff.reset(); // ยืม connection ได้แล้ว
                     //ส่งข้อความจากช่อง CH_BROADCAST, CH_CONTROL, CH_PRESENCE ไปยัง jps
-                    jedis.subscribe(jps, CH_BROADCAST, CH_CONTROL, CH_PRESENCE); //ฟังช่อง CH_BROADCAST, CH_CONTROL, CH_PRESENCE | subscribe ไป 3 ช่อง: broadcast, control, presence — บล็อกค้างเพื่อรอฟังข้อความ
-                } catch (Exception e) { // ถ้าการเชื่อมหลุด/เกิดปัญหา → พัก 2 วินาที แล้ววนใหม่ 
-                    System.err.printf("[%-10s|SUB] error: %s (retry 2s)%n", st.name, e.getMessage());  
-                    sleep(2);  
+                    if ("streams".equals(args.transport)) jedis.subscribe(jps, CH_CONTROL, CH_PRESENCE); // broadcast มาทาง StreamSubscriber | control ฟังทั้งสองทาง (PUBLISH control ด้วยมือยังใช้ได้)
+                    else jedis.subscribe(jps, CH_BROADCAST, CH_CONTROL, CH_PRESENCE); //ฟังช่อง CH_BROADCAST, CH_CONTROL, CH_PRESENCE | subscribe ไป 3 ช่อง: broadcast, control, presence — บล็อกค้างเพื่อรอฟังข้อความ
+                } catch (Exception e) { // ถ้าการเชื่อมหลุด/เกิดปัญหา → พักตาม backoff แล้ววนใหม่
+                    METRICS.reconnect("sub");
+                    long d = backoff.next();
+                    System.err.printf("[%-10s|SUB] error: %s (retry %dms)%n", st.name, e.getMessage(), d);
+                    sleepMs(d);
+                }
+            }
+        }
+    }
+
+    // --------- StreamSubscriber (--transport streams: broadcast/control ผ่าน consumer group) ---------
+    static class StreamSubscriber implements Runnable { // อ่านทีละชุดด้วย XREADGROUP แล้วส่งต่อให้ Subscriber.deliver
+        // 1 โปรเซส = 1 group "node:<name>:<instance>" (ทุกโปรเซสได้ทุกข้อความ แม้ --name ซ้ำกัน) | consumer = name-pid
+        // ข้อความที่อ่านแล้วแต่ยังไม่ ack (หลุดกลางทาง) อยู่ใน pending ของ consumer → ต่อใหม่แล้วอ่าน pending (id 0) ก่อน ค่อยอ่านใหม่ (>)
+        // restart ด้วย --instance-id เดิม: consumer ใหม่ (pid ใหม่) รับ pending ของตัวเก่ามาด้วย XAUTOCLAIM ก่อนอ่าน
+        // XACK หลัง handler จัดการเสร็จ (--dispatch async: หลัง worker ของช่องนั้น) ไม่ใช่ตอนเข้าคิว
+        final Args args; final State st; final JedisPool pool; final Subscriber sub;
+        final String group, consumer;
+        final Map<String, ConcurrentLinkedQueue<StreamEntryID>> done = Map.of( // จัดการเสร็จแล้ว รอ XACK (เติมจาก thread ของ handler)
+                STREAM_BROADCAST, new ConcurrentLinkedQueue<>(), STREAM_CONTROL, new ConcurrentLinkedQueue<>());
+        final Set<StreamEntryID> inFlight = ConcurrentHashMap.newKeySet(); // ส่งให้ handler แล้วแต่ยังไม่ ack → อ่าน pending ซ้ำแล้วข้าม
+        final LongAdder broadcasts = new LongAdder(), controls = new LongAdder();
+        long lastReportNs = System.nanoTime(), lastB, lastC;
+
+        StreamSubscriber(Args a, State s, JedisPool p, Subscriber sub) {
+            this.args = a; this.st = s; this.pool = p; this.sub = sub;
+            this.group = "node:" + s.name + ":" + (a.instanceId.isEmpty() ? Long.toString(s.pid) : a.instanceId);
+            this.consumer = s.name + "-" + s.pid;
+        }
+
+        @Override public void run() {
+            Backoff backoff = new Backoff(200, args.retryMaxMs);
+            while (!allDown() && !Thread.currentThread().isInterrupted()) { // ใช้ร่วมกันทุกโหนดในโปรเซส → หยุดเมื่อทุกโหนดปิด
+                try (Jedis j = pool.getResource()) {
+                    for (String stream : done.keySet()) {
+                        ensureGroup(j, stream);
+                        claimStale(j, stream);
+                        pruneGroups(j, stream);
+                    }
+                    backoff.reset();
+                    Map<String, StreamEntryID> pending = new HashMap<>(); // stream → อ่าน pending ต่อจาก id นี้ (หมดแล้วเอาออก)
+                    pending.put(STREAM_BROADCAST, new StreamEntryID(0, 0));
+                    pending.put(STREAM_CONTROL, new StreamEntryID(0, 0));
+                    Map<String, StreamEntryID> fresh = Map.of(STREAM_BROADCAST, StreamEntryID.XREADGROUP_UNDELIVERED_ENTRY,
+                            STREAM_CONTROL, StreamEntryID.XREADGROUP_UNDELIVERED_ENTRY);
+                    while (!allDown()) {
+                        ack(j); // ที่ handler จัดการเสร็จตั้งแต่รอบก่อน
+                        boolean catchingUp = !pending.isEmpty();
+                        XReadGroupParams p = XReadGroupParams.xReadGroupParams().count(args.readCount);
+                        if (!catchingUp) p.block(args.readBlockMs); // อ่าน pending ไม่ต้องรอ
+                        List<Map.Entry<String, List<StreamEntry>>> res = j.xreadGroup(group, consumer, p, catchingUp ? new HashMap<>(pending) : fresh);
+                        if (catchingUp) { // stream ที่ pending หมดแล้ว (ได้ลิสต์ว่าง/ไม่มีในผล) → เลิกอ่าน pending ของ stream นั้น
+                            Set<String> seen = new HashSet<>();
+                            if (res != null) for (Map.Entry<String, List<StreamEntry>> e : res) {
+                                if (!e.getValue().isEmpty()) { seen.add(e.getKey()); pending.put(e.getKey(), e.getValue().get(e.getValue().size() - 1).getID()); }
+                            }
+                            pending.keySet().retainAll(seen);
+                        }
+                        if (res != null) for (Map.Entry<String, List<StreamEntry>> e : res) handle(e.getKey(), e.getValue());
+                        ack(j); // inline / probe จัดการเสร็จไปแล้วตอน handle
+                        report();
+                    }
+                } catch (Exception e) { // หลุด / NOGROUP (stream ถูกลบ) → ต่อใหม่แล้วสร้าง group ใหม่ อ่าน pending ก่อน
+                    METRICS.reconnect("stream");
+                    long d = backoff.next();
+                    System.err.printf("[%-10s|STREAM] error: %s (retry %dms)%n", st.name, e.getMessage(), d);
+                    sleepMs(d);
+                }
+            }
+        }
+
+        void ensureGroup(Jedis j, String stream) { // XGROUP CREATE ... $ MKSTREAM | group ใหม่เริ่มจากข้อความถัดไป ไม่ย้อนอ่านของเก่า
+            try {
+                j.xgroupCreate(stream, group, StreamEntryID.XGROUP_LAST_ENTRY, true);
+            } catch (JedisDataException e) {
+                if (e.getMessage() == null || !e.getMessage().startsWith("BUSYGROUP")) throw e; // มีอยู่แล้ว = อ่านต่อจากเดิม
+            }
+        }
+
+        // pending ของ consumer อื่นใน group เดียวกัน (= ตัวเราก่อน restart) ที่ค้างนานกว่า --timeout-ms → ย้ายมาเป็นของเรา
+        // แล้วรอบอ่าน pending (id 0) จะส่งให้ handler เอง | consumer เก่าที่ไม่เหลือ pending แล้วลบทิ้ง
+        void claimStale(Jedis j, String stream) {
+            StreamEntryID cursor = new StreamEntryID(0, 0);
+            int claimed = 0;
+            do {
+                Map.Entry<StreamEntryID, List<StreamEntryID>> r = j.xautoclaimJustId(stream, group, consumer, args.timeoutMs, cursor,
+                        XAutoClaimParams.xAutoClaimParams().count(args.readCount));
+                for (StreamEntryID id : r.getValue()) if (!inFlight.contains(id)) claimed++; // ของเราเองที่ handler ยังถืออยู่ไม่นับ
+                cursor = r.getKey();
+            } while (cursor.getTime() != 0 || cursor.getSequence() != 0); // 0-0 = ไล่ครบแล้ว
+            if (claimed > 0) LOG.printf("[%-10s|STREAM] %s: claimed %d pending from previous consumers%n", st.name, stream, claimed);
+            for (StreamConsumerInfo c : j.xinfoConsumers2(stream, group)) {
+                if (!consumer.equals(c.getName()) && c.getPending() == 0) j.xgroupDelConsumer(stream, group, c.getName());
+            }
+        }
+
+        // group ของโปรเซสที่จบไปแล้ว (instance id = pid) ไม่มีใครอ่านอีก → ลบทิ้ง ไม่งั้นค้างใน Redis พร้อม pending ตลอดไป
+        // ถือว่าตายเมื่อทุก consumer เงียบเกิน max(60s, 3 × --remove-delay-ms) | ตัวที่ยังอ่านอยู่เงียบไม่เกิน --read-block-ms
+        void pruneGroups(Jedis j, String stream) {
+            long staleMs = Math.max(60_000, 3 * args.removeDelayMs);
+            for (StreamGroupInfo g : j.xinfoGroups(stream)) {
+                if (group.equals(g.getName()) || !g.getName().startsWith("node:") || g.getConsumers() == 0) continue;
+                boolean dead = true;
+                for (StreamConsumerInfo c : j.xinfoConsumers2(stream, g.getName())) if (c.getIdle() < staleMs) { dead = false; break; }
+                if (dead) {
+                    j.xgroupDestroy(stream, g.getName());
+                    LOG.printf("[%-10s|STREAM] %s: removed stale group %s%n", st.name, stream, g.getName());
                 }
             }
         }
+
+        void handle(String stream, List<StreamEntry> entries) { // ส่งต่อทั้งชุด | ack ทีหลังเมื่อ handler จัดการเสร็จ
+            if (entries.isEmpty()) return;
+            String ch = channelOf(stream);
+            ConcurrentLinkedQueue<StreamEntryID> q = done.get(stream);
+            int n = 0;
+            for (StreamEntry e : entries) {
+                StreamEntryID id = e.getID();
+                String msg = e.getFields() == null ? null : e.getFields().get(STREAM_FIELD); // null = ถูก MAXLEN ตัดไปแล้วขณะค้างใน pending
+                if (msg == null) { q.add(id); continue; } // ไม่มีอะไรให้จัดการ → ack ทิ้ง
+                if (!inFlight.add(id)) continue; // อ่าน pending ซ้ำหลังต่อใหม่ แต่ยังอยู่ในคิวของ handler → รอ ack เดิม
+                n++;
+                sub.deliver(ch, msg, () -> q.add(id));
+            }
+            (CH_CONTROL.equals(ch) ? controls : broadcasts).add(n);
+        }
+
+        void ack(Jedis j) { // XACK ครั้งเดียวต่อ stream ของทุกข้อความที่จัดการเสร็จแล้ว (ส่งไม่สำเร็จ = คืนเข้าคิว ack รอบหน้า)
+            for (Map.Entry<String, ConcurrentLinkedQueue<StreamEntryID>> e : done.entrySet()) {
+                ConcurrentLinkedQueue<StreamEntryID> q = e.getValue();
+                if (q.isEmpty()) continue;
+                List<StreamEntryID> ids = new ArrayList<>();
+                for (StreamEntryID id; (id = q.poll()) != null; ) ids.add(id);
+                try {
+                    j.xack(e.getKey(), group, ids.toArray(new StreamEntryID[0]));
+                } catch (RuntimeException ex) {
+                    q.addAll(ids);
+                    throw ex;
+                }
+                inFlight.removeAll(ids); // หลุดก่อนถึงตรงนี้ = ยังอยู่ใน pending ได้อ่านซ้ำหลังต่อใหม่ (at-least-once)
+            }
+        }
+
+        void report() { // อัตรารับ (ทุก ~5s ถ้ามีข้อความ)
+            long now = System.nanoTime();
+            if (now - lastReportNs < 5_000_000_000L) return;
+            long b = broadcasts.sum(), c = controls.sum();
+            if (b != lastB || c != lastC) {
+                double sec = (now - lastReportNs) / 1e9;
+                LOG.printf("[%-10s|STREAM] recv broadcast=%.0f/s control=%.0f/s (total %d/%d)%n", st.name, (b - lastB) / sec, (c - lastC) / sec, b, c);
+            }
+            lastB = b; lastC = c; lastReportNs = now;
+        }
+    }
+
+    // --------- Dispatch pipeline (thread I/O เข้าคิว → worker ต่อช่องจัดการ) ---------
+    static class Lane<T> { // คิวจำกัดขนาด 1 ช่อง + worker 1 ตัว (ลำดับในช่องเดียวกันยังเรียงเหมือนเดิม)
+        final String owner, name, mode; // mode: latest | drop-oldest | block
+        final ArrayBlockingQueue<T> q;
+        final Consumer<T> handler;
+        final Consumer<T> done; // เรียกหลัง handler จบ หรือเมื่อข้อความถูกทิ้ง (null = ไม่ต้องแจ้ง) | streams ใช้ XACK
+        final LongAdder dropped = new LongAdder();
+        long lastWarnNs = System.nanoTime(), warnedDropped; // ใช้ใน offer (thread ผู้ส่งเดียว)
+
+        Lane(String owner, String name, int capacity, String mode, Consumer<T> handler) { this(owner, name, capacity, mode, handler, null); }
+
+        Lane(String owner, String name, int capacity, String mode, Consumer<T> handler, Consumer<T> done) {
+            this.owner = owner; this.name = name; this.mode = mode; this.handler = handler; this.done = done;
+            this.q = new ArrayBlockingQueue<>("latest".equals(mode) ? 1 : capacity); // latest ต้องการแค่ช่องเดียว
+            Thread t = new Thread(this::drain, "dispatch-" + name);
+            t.setDaemon(true); // ไม่กั้นการปิดโปรแกรม
+            t.start();
+        }
+
+        static String mode(String overflow, boolean latestLane) { // --overflow → วิธีของช่องนี้
+            if ("coalesce".equals(overflow)) return latestLane ? "latest" : "drop-oldest";
+            return overflow;
+        }
+
+        void offer(T msg) {
+            if ("block".equals(mode)) {
+                try { q.put(msg); } catch (InterruptedException e) { Thread.currentThread().interrupt(); dropped.increment(); finish(msg); }
+                return;
+            }
+            while (!q.offer(msg)) { // เต็ม → ทิ้งตัวเก่าสุด (latest: ตัวเดียวที่ค้าง = ตารางที่ล้าสมัยแล้ว)
+                T old = q.poll();
+                if (old != null) { dropped.increment(); finish(old); } // ทิ้งโดยตั้งใจ = จบแล้ว
+            }
+            long now = System.nanoTime();
+            if (now - lastWarnNs >= 5_000_000_000L) { // เตือนไม่เกิน 1 ครั้ง / 5s
+                long d = dropped.sum();
+                if (d > warnedDropped) {
+                    System.err.printf("[%-10s|DISPATCH] %s: dropped %d (total %d, mode=%s)%n", owner, name, d - warnedDropped, d, mode);
+                    warnedDropped = d;
+                }
+                lastWarnNs = now;
+            }
+        }
+
+        void drain() {
+            while (true) {
+                T msg;
+                try { msg = q.take(); } catch (InterruptedException e) { return; }
+                try {
+                    handler.accept(msg);
+                } catch (Exception e) { // handler พังทีละข้อความ worker ยังอยู่
+                    System.err.printf("[%-10s|DISPATCH] %s error: %s%n", owner, name, e);
+                }
+                finish(msg);
+            }
+        }
+
+        void put(T msg) { // ข้อความที่ห้ามหาย (มาจาก stream: ทิ้ง = XACK ทั้งที่ไม่ได้จัดการ) → รอจนคิวมีที่ว่าง ไม่ว่า mode ไหน
+            try { q.put(msg); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); } // กำลังปิด: ไม่ ack → ค้างใน pending ให้ consumer ถัดไป (XAUTOCLAIM)
+        }
+
+        void finish(T msg) { if (done != null) done.accept(msg); }
+    }
+
+    static class Delivery { // ข้อความ + สิ่งที่ต้องทำเมื่อจัดการเสร็จ (streams: XACK) | ack = null: ไม่มี (pubsub)
+        final String msg; final Runnable ack;
+        Delivery(String msg, Runnable ack) { this.msg = msg; this.ack = ack; }
+    }
+
+    static class Dispatcher { // ช่อง → Lane | ช่องที่ไม่มี handler = ทิ้ง
+        final Args args; final String owner;
+        final Map<String, Lane<Delivery>> lanes = new ConcurrentHashMap<>();
+        Dispatcher(Args a, String owner) { this.args = a; this.owner = owner; }
+
+        void register(String ch, boolean latestOnly, Consumer<String> handler) { // latestOnly = ข้อความใหม่ทับของเก่าได้ (เช่น presence)
+            lanes.put(ch, new Lane<>(owner, ch, args.queueSize, Lane.mode(args.overflow, latestOnly),
+                    d -> handler.accept(d.msg), d -> { if (d.ack != null) d.ack.run(); }));
+        }
+
+        void offer(String ch, String msg, Runnable ack) {
+            Lane<Delivery> lane = lanes.get(ch);
+            if (lane != null && ack != null) lane.put(new Delivery(msg, ack)); // จาก stream: คิวเต็ม = StreamSubscriber รอ (ข้อความรอใน Redis แทน)
+            else if (lane != null) lane.offer(new Delivery(msg, ack));
+            else if (ack != null) ack.run(); // ไม่มีใครรับช่องนี้ = จบทันที
+        }
+    }
+
+    // --------- Async log (stdout แบบรวม batch บน thread เดียว) ---------
+    static final AsyncLog LOG = new AsyncLog(8192);
+
+    static class AsyncLog { // printf ไม่บล็อก: เข้าคิว แล้ว writer พิมพ์ทีละหลายบรรทัดด้วย print ครั้งเดียว
+        final LinkedBlockingQueue<String> q;
+        final AtomicInteger pending = new AtomicInteger(); // เข้าคิวแล้วแต่ยังพิมพ์ไม่เสร็จ
+        final LongAdder dropped = new LongAdder();
+
+        AsyncLog(int capacity) {
+            q = new LinkedBlockingQueue<>(capacity);
+            Thread t = new Thread(this::write, "log-writer");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void printf(String fmt, Object... a) { print(String.format(fmt, a)); }
+        void println(String s) { print(s + System.lineSeparator()); }
+        void print(String s) {
+            pending.incrementAndGet();
+            if (!q.offer(s)) { pending.decrementAndGet(); dropped.increment(); } // คิวเต็ม = stdout ช้ากว่าที่ผลิต → ทิ้งดีกว่าบล็อก thread งาน
+        }
+
+        void flush() { // รอจนพิมพ์หมด (ใช้ตอนปิด) | รอไม่เกิน 1s
+            long end = System.currentTimeMillis() + 1000;
+            while (pending.get() > 0 && System.currentTimeMillis() < end) sleepMs(5);
+        }
+
+        void write() {
+            List<String> batch = new ArrayList<>(256);
+            StringBuilder sb = new StringBuilder(8192);
+            long reported = 0;
+            while (true) {
+                try { batch.add(q.take()); } catch (InterruptedException e) { return; }
+                q.drainTo(batch, 255);
+                for (String s : batch) sb.append(s);
+                long d = dropped.sum();
+                if (d > reported) { sb.append("[LOG] dropped ").append(d - reported).append(" lines").append(System.lineSeparator()); reported = d; }
+                System.out.print(sb);
+                System.out.flush();
+                pending.addAndGet(-batch.size());
+                batch.clear();
+                sb.setLength(0);
+            }
+        }
+    }
+
+    // --------- Metrics (ตัวนับ + histogram ราคาถูก → Prometheus /metrics และ JMX) ---------
+    static final Metrics METRICS = new Metrics();
+
+    static class Histogram { // bucket แบบ log2: ค่า v ตกช่อง i เมื่อ v < 2^i | record = LongAdder 2 ตัว + 1 ช่อง ไม่มี lock
+        static final int BUCKETS = 28;
+        final LongAdder[] counts = new LongAdder[BUCKETS];
+        final LongAdder count = new LongAdder(), sum = new LongAdder();
+        final double scale; // หน่วยที่เก็บ → หน่วยที่แสดง (เช่น µs → วินาที = 1e-6)
+
+        Histogram(double scale) { this.scale = scale; for (int i = 0; i < BUCKETS; i++) counts[i] = new LongAdder(); }
+
+        void record(long v) {
+            if (v < 0) v = 0;
+            counts[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v))].increment();
+            count.increment();
+            sum.add(v);
+        }
+
+        double quantile(double q) { // ขอบบนของ bucket ที่ครอบ q (ประมาณ ไม่เกิน 2 เท่าของค่าจริง)
+            long total = count.sum(), seen = 0;
+            if (total == 0) return 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i].sum();
+                if (seen >= q * total) return (1L << i) * scale;
+            }
+            return (1L << (BUCKETS - 1)) * scale;
+        }
+
+        void prometheus(StringBuilder sb, String name, String help) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(" histogram\n");
+            long cum = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) { // le = 2^i - 1 (ค่าเต็มหน่วย ที่ยังอยู่ช่องนี้)
+                cum += counts[i].sum();
+                sb.append(name).append("_bucket{le=\"").append(((1L << i) - 1) * scale).append("\"} ").append(cum).append('\n');
+            }
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(count.sum()).append('\n');
+            sb.append(name).append("_sum ").append(sum.sum() * scale).append('\n');
+            sb.append(name).append("_count ").append(count.sum()).append('\n');
+        }
+    }
+
+    static class Metrics { // ค่าเดียวทั้งโปรเซส (--nodes: รวมทุกโหนด) | ทุก record เป็น LongAdder → เรียกจาก hot path ได้
+        final Histogram tickUs = new Histogram(1e-6);      // ระยะเวลา 1 tick ของ Coordinator (µs → s)
+        final Histogram callsPerTick = new Histogram(1);   // round trip ไป Redis ต่อ tick
+        final Histogram publishUs = new Histogram(1e-6);   // เวลา PUBLISH/XADD 1 ครั้ง (batch = 1 ชุด)
+        final LongAdder ticks = new LongAdder(), overruns = new LongAdder(); // overrun = tick นานกว่า --tick-ms
+        final LongAdder published = new LongAdder(), leaderChanges = new LongAdder();
+        final Map<String, LongAdder> received = new ConcurrentHashMap<>();   // ช่อง → จำนวนข้อความที่รับ
+        final Map<String, LongAdder> reconnects = new ConcurrentHashMap<>(); // listener → จำนวนครั้งที่หลุดแล้วต่อใหม่
+        final Map<String, LongAdder> loopErrors = new ConcurrentHashMap<>(); // งานเป็นรอบ (COORD/PUB/...) → error
+        volatile long leaderChangedAt = System.currentTimeMillis();
+        volatile double jitterMs; // EWMA ความคลาดของรอบ tick (โหนดแรก)
+        final long startedAt = System.currentTimeMillis();
+        static final ThreadLocal<int[]> CALLS = ThreadLocal.withInitial(() -> new int[1]); // นับ round trip ของ tick ที่ thread นี้กำลังทำ
+
+        void call(int n) { CALLS.get()[0] += n; } // Redis round trip n ครั้ง (เรียกในเส้นทางของ Coordinator)
+        void beginTick() { CALLS.get()[0] = 0; }
+        void endTick(long durNs, long tickMs) {
+            tickUs.record(durNs / 1000);
+            callsPerTick.record(CALLS.get()[0]);
+            ticks.increment();
+            if (durNs > tickMs * 1_000_000L) overruns.increment();
+        }
+        void published(int n, long durNs) { published.add(n); publishUs.record(durNs / 1000); }
+        void received(String ch) { received.computeIfAbsent(ch, k -> new LongAdder()).increment(); }
+        void reconnect(String who) { reconnects.computeIfAbsent(who, k -> new LongAdder()).increment(); }
+        void loopError(String tag) { loopErrors.computeIfAbsent(tag, k -> new LongAdder()).increment(); }
+        void leaderChanged() { leaderChanges.increment(); leaderChangedAt = System.currentTimeMillis(); }
+
+        int[] membership() { // {alive, ทั้งหมด} จาก presence ล่าสุดที่โหนดแรกได้รับ
+            Presence pr = LOCAL_NODES.isEmpty() ? null : LOCAL_NODES.get(0).view.last;
+            if (pr == null) return new int[] {0, 0};
+            int alive = 0;
+            for (Member m : pr.members) if (m.alive) alive++;
+            return new int[] {alive, pr.members.size()};
+        }
+
+        String prometheus() {
+            StringBuilder sb = new StringBuilder(8192);
+            tickUs.prometheus(sb, "pubsub_coord_tick_seconds", "Coordinator tick duration");
+            callsPerTick.prometheus(sb, "pubsub_coord_redis_calls_per_tick", "Redis round trips per coordinator tick");
+            counter(sb, "pubsub_coord_ticks_total", "Coordinator ticks", ticks.sum());
+            counter(sb, "pubsub_coord_tick_overruns_total", "Ticks that took longer than --tick-ms", overruns.sum());
+            gauge(sb, "pubsub_coord_jitter_ms", "EWMA of tick start jitter", jitterMs);
+            publishUs.prometheus(sb, "pubsub_publish_seconds", "PUBLISH/XADD latency (one batch in batch mode)");
+            counter(sb, "pubsub_published_total", "Messages published to broadcast", published.sum());
+            labeled(sb, "pubsub_received_total", "Messages received per channel", "channel", received);
+            labeled(sb, "pubsub_subscriber_reconnects_total", "Listener reconnects", "listener", reconnects);
+            labeled(sb, "pubsub_loop_errors_total", "Errors in periodic loops", "loop", loopErrors);
+            counter(sb, "pubsub_leader_changes_total", "Leader changes seen", leaderChanges.sum());
+            gauge(sb, "pubsub_leader_age_seconds", "Seconds since the last leader change", (System.currentTimeMillis() - leaderChangedAt) / 1000.0);
+            int[] ms = membership();
+            gauge(sb, "pubsub_members_alive", "Alive members in the last presence", ms[0]);
+            gauge(sb, "pubsub_members_total", "Members (alive + disappeared) in the last presence", ms[1]);
+            gauge(sb, "pubsub_local_nodes", "Nodes hosted by this process", LOCAL_NODES.size());
+            return sb.toString();
+        }
+
+        static void counter(StringBuilder sb, String name, String help, long v) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(v).append('\n');
+        }
+        static void gauge(StringBuilder sb, String name, String help, double v) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" gauge\n");
+            sb.append(name).append(' ').append(v).append('\n');
+        }
+        static void labeled(StringBuilder sb, String name, String help, String label, Map<String, LongAdder> m) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" counter\n");
+            for (Map.Entry<String, LongAdder> e : new TreeMap<>(m).entrySet()) {
+                sb.append(name).append('{').append(label).append("=\"").append(e.getKey()).append("\"} ").append(e.getValue().sum()).append('\n');
+            }
+        }
+
+        Map<String, Double> attributes() { // ค่าเดียวกันแบบแบน ๆ สำหรับ JMX
+            Map<String, Double> m = new LinkedHashMap<>();
+            m.put("CoordTicks", (double) ticks.sum());
+            m.put("CoordTickOverruns", (double) overruns.sum());
+            m.put("CoordTickP50Ms", tickUs.quantile(0.50) * 1000);
+            m.put("CoordTickP99Ms", tickUs.quantile(0.99) * 1000);
+            m.put("CoordJitterMs", jitterMs);
+            m.put("RedisCallsPerTickP50", callsPerTick.quantile(0.50));
+            m.put("RedisCallsPerTickP99", callsPerTick.quantile(0.99));
+            m.put("Published", (double) published.sum());
+            m.put("PublishP99Ms", publishUs.quantile(0.99) * 1000);
+            m.put("PublishRatePerSec", published.sum() * 1000.0 / Math.max(1, System.currentTimeMillis() - startedAt)); // เฉลี่ยตั้งแต่เริ่ม
+            for (Map.Entry<String, LongAdder> e : new TreeMap<>(received).entrySet()) m.put("Received_" + e.getKey().replace(':', '_'), (double) e.getValue().sum());
+            m.put("Reconnects", (double) reconnects.values().stream().mapToLong(LongAdder::sum).sum());
+            m.put("LeaderChanges", (double) leaderChanges.sum());
+            m.put("SecondsSinceLeaderChange", (System.currentTimeMillis() - leaderChangedAt) / 1000.0);
+            int[] ms = membership();
+            m.put("MembersAlive", (double) ms[0]);
+            m.put("MembersTotal", (double) ms[1]);
+            return m;
+        }
+    }
+
+    static class MetricsMBean implements DynamicMBean { // JMX: pubsub:type=Metrics,node=<name> | attribute อ่านอย่างเดียว (Double)
+        @Override public Object getAttribute(String name) throws AttributeNotFoundException {
+            Double v = METRICS.attributes().get(name);
+            if (v == null) throw new AttributeNotFoundException(name);
+            return v;
+        }
+        @Override public AttributeList getAttributes(String[] names) {
+            Map<String, Double> all = METRICS.attributes();
+            AttributeList out = new AttributeList();
+            for (String n : names) if (all.containsKey(n)) out.add(new Attribute(n, all.get(n)));
+            return out;
+        }
+        @Override public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("read-only: " + attribute.getName());
+        }
+        @Override public AttributeList setAttributes(AttributeList attributes) { return new AttributeList(); }
+        @Override public Object invoke(String action, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(action));
+        }
+        @Override public MBeanInfo getMBeanInfo() { // สร้างใหม่ทุกครั้ง: ช่องที่รับข้อความเพิ่มขึ้นระหว่างทำงานได้
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for (String n : METRICS.attributes().keySet()) attrs.add(new MBeanAttributeInfo(n, "java.lang.Double", n, true, false, false));
+            return new MBeanInfo(MetricsMBean.class.getName(), "pubsub node metrics", attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+
+    static void startMetrics(Args a, State st) { // JMX เสมอ + HTTP /metrics ถ้ามี --metrics-port
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                    new ObjectName("pubsub:type=Metrics,node=" + ObjectName.quote(st.name)));
+        } catch (Exception e) {
+            System.err.printf("[%-10s|METRICS] jmx error: %s%n", st.name, e.getMessage());
+        }
+        if (a.metricsPort <= 0) return;
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(a.metricsHost, a.metricsPort), 0);
+            http.createContext("/metrics", ex -> {
+                byte[] body = METRICS.prometheus().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                ex.sendResponseHeaders(200, body.length);
+                try (var out = ex.getResponseBody()) { out.write(body); }
+            });
+            http.start(); // executor เริ่มต้น = thread เดียว พอสำหรับ scrape
+            System.out.printf("[%-10s|METRICS] http://%s:%d/metrics%n", st.name, a.metricsHost, a.metricsPort);
+        } catch (Exception e) {
+            System.err.printf("[%-10s|METRICS] http error: %s%n", st.name, e.getMessage());
+        }
+    }
+
+    // --------- Probe (--probe on: latency / ข้อความหาย / สลับลำดับ ของ broadcast) ---------
+    static final Instant WALL0 = Instant.now(); // เวลาจริง ณ ตอนเริ่ม
+    static final long WALL0_NS = WALL0.getEpochSecond() * 1_000_000_000L + WALL0.getNano(), MONO0_NS = System.nanoTime();
+
+    static long wallNanos() { // เวลาจริงความละเอียด ns (ไม่สร้าง Instant ทุกข้อความ) | ข้ามเครื่อง = ต้อง sync นาฬิกา
+        return WALL0_NS + (System.nanoTime() - MONO0_NS);
+    }
+
+    static class LatencyHistogram { // แบบ HdrHistogram: แต่ละช่วง 2^k แบ่งย่อยเป็น 16 ช่อง → คลาดไม่เกิน ~6% (หน่วย µs)
+        static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+        final long[] counts = new long[64 * SUB];
+        long total, max;
+
+        static int index(long v) {
+            if (v < 2 * SUB) return (int) v; // ค่าน้อย: ช่องละ 1 µs
+            int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return shift * SUB + (int) (v >>> shift);
+        }
+
+        static long upper(int idx) { // ค่ามากสุดของช่อง idx
+            if (idx < 2 * SUB) return idx;
+            int shift = idx / SUB - 1;
+            long sub = idx % SUB + SUB;
+            return ((sub + 1) << shift) - 1;
+        }
+
+        void record(long v) { counts[index(Math.max(0, v))]++; total++; if (v > max) max = v; }
+
+        long percentile(double p) {
+            if (total == 0) return 0;
+            long want = (long) Math.ceil(p / 100.0 * total), seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= want) return Math.min(upper(i), max);
+            }
+            return max;
+        }
+
+        void reset() { Arrays.fill(counts, 0); total = 0; max = 0; }
+    }
+
+    static class ProbeTracker { // ผู้รับ: ติดตามทุกผู้ส่งแยกกันด้วย pid | record เรียกจาก thread ที่รับ (synchronized กันรายงานอ่านพร้อมกัน)
+        static final int MAX_MISSING = 100_000; // จำ seq ที่ขาดไว้ได้สูงสุดต่อผู้ส่ง (ไว้แยก "มาช้า" กับ "ซ้ำ")
+
+        static class Sender {
+            final long pid; final String name;
+            long next = -1; // seq ที่คาดว่าจะได้ถัดไป (-1 = ยังไม่เคยได้)
+            long received, gaps, reorders, duplicates;
+            final TreeSet<Long> missing = new TreeSet<>();
+            Sender(long pid, String name) { this.pid = pid; this.name = name; }
+        }
+
+        final String name;
+        final Map<Long, Sender> senders = new HashMap<>();
+        final LatencyHistogram interval = new LatencyHistogram(), overall = new LatencyHistogram();
+        long intervalReceived, skewed, malformed;
+        long lastReportNs = System.nanoTime();
+
+        ProbeTracker(String name) { this.name = name; }
+
+        synchronized void record(String msg, long recvNs) { // "probe|<pid>|<seq>|<sentNs>|<name>..."
+            int a = 6, b = msg.indexOf('|', a), c = b < 0 ? -1 : msg.indexOf('|', b + 1), d = c < 0 ? -1 : msg.indexOf('|', c + 1);
+            if (d < 0) { malformed++; return; }
+            long pid, seq, sentNs;
+            try {
+                pid = Long.parseLong(msg, a, b, 10);
+                seq = Long.parseLong(msg, b + 1, c, 10);
+                sentNs = Long.parseLong(msg, c + 1, d, 10);
+            } catch (NumberFormatException e) { malformed++; return; }
+            Sender s = senders.get(pid);
+            if (s == null) {
+                int e = msg.indexOf('|', d + 1);
+                s = new Sender(pid, msg.substring(d + 1, e < 0 ? msg.length() : e).trim());
+                senders.put(pid, s);
+            }
+            s.received++;
+            intervalReceived++;
+            if (s.next < 0 || seq == s.next) {
+                s.next = seq + 1; // ข้อความแรกที่เห็น = จุดเริ่ม (ก่อนหน้านี้ไม่นับว่าหาย)
+            } else if (seq > s.next) { // ข้ามไป → seq ระหว่างนั้นหาย (อาจมาทีหลัง)
+                s.gaps += seq - s.next;
+                for (long m = s.next; m < seq && s.missing.size() < MAX_MISSING; m++) s.missing.add(m);
+                s.next = seq + 1;
+            } else if (s.missing.remove(seq)) { // มาช้ากว่าตัวหลัง = สลับลำดับ ไม่ได้หาย
+                s.reorders++;
+                s.gaps--;
+            } else {
+                s.duplicates++;
+            }
+            long latUs = (recvNs - sentNs) / 1000;
+            if (latUs < 0) { skewed++; latUs = 0; } // นาฬิกาผู้ส่งเร็วกว่า (ต่างเครื่อง)
+            interval.record(latUs);
+            overall.record(latUs);
+        }
+
+        synchronized String report(boolean fin) {
+            long now = System.nanoTime();
+            double sec = Math.max(1e-9, (now - lastReportNs) / 1e9);
+            long recv = 0, gaps = 0, reorders = 0, dups = 0;
+            for (Sender s : senders.values()) { recv += s.received; gaps += s.gaps; reorders += s.reorders; dups += s.duplicates; }
+            LatencyHistogram h = fin ? overall : interval;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("[%-10s|PROBE%s] senders=%d recv=%d%s lost=%d reordered=%d dup=%d | latency us p50=%d p90=%d p99=%d p99.9=%d max=%d%n",
+                    name, fin ? " FINAL" : "", senders.size(), recv, fin ? "" : String.format(" (%.0f/s)", intervalReceived / sec), gaps, reorders, dups,
+                    h.percentile(50), h.percentile(90), h.percentile(99), h.percentile(99.9), h.max));
+            if (fin) {
+                for (Sender s : new TreeMap<>(senders).values()) {
+                    sb.append(String.format("    %-8d %-20s recv=%d lost=%d reordered=%d dup=%d lastSeq=%d%n",
+                            s.pid, s.name, s.received, s.gaps, s.reorders, s.duplicates, s.next - 1));
+                }
+                if (skewed > 0 || malformed > 0) sb.append(String.format("    clock-skewed=%d malformed=%d%n", skewed, malformed));
+            }
+            interval.reset();
+            intervalReceived = 0;
+            lastReportNs = now;
+            return sb.toString();
+        }
     }
 
     // --------- Publisher (ส่งข้อความ chat เดิม) ---------
-    static class Publisher implements Runnable {
-        final Args a; final State st; 
-        Publisher(Args a, State s) { this.a = a; this.st = s; }
+    static class Publisher implements Runnable { // 1 ครั้งที่ run = ส่ง 1 ข้อความ | Scheduler เรียกทุก --publish-ms
+        final Args a; final State st; final JedisPool pool;
+        final AtomicLong seq = new AtomicLong(); // --probe: ลำดับข้อความของผู้ส่งนี้
+        Publisher(Args a, State s, JedisPool p) { this.a = a; this.st = s; this.pool = p; }
 
         @Override public void run() {
-            while (!st.shuttingDown && !Thread.currentThread().isInterrupted()) {
-                
-                try (Jedis jedis = newJedis(a.host, a.port, a.pass)) { // สร้าง client เชื่อมไปยัง Redis server
+            try (Jedis jedis = pool.getResource()) { // ยืม connection ที่ AUTH แล้วจาก pool (ไม่ได้ต่อใหม่)
+                String msg;
+                if (a.probe) { // --probe: seq + เวลาส่ง (ns) | ข้อความปกติไม่ได้ใช้ → ไม่ต้องสร้าง (เวลาส่งอ่านหลังจากนี้อยู่แล้ว ไม่กระทบ latency)
+                    msg = "probe|" + st.pid + "|" + seq.incrementAndGet() + "|" + wallNanos() + "|" + st.name;
+                } else {
                     String role = st.isLeader ? "BOSS" : "WORKER"; //ถ้าisLeader=true role=BOSS ถ้าisLeader=false role=WORKER
-                    String msg  = String.format("%s | %s | pid=%d @ %s", st.name, role, st.pid, Instant.now()); //สร้างข้อความที่จะส่ง
-                    jedis.publish(CH_BROADCAST, msg); //ส่งข้อความไปยังช่อง CH_BROADCAST
-                    sleep(1); //รอ1วินาที 
-                } catch (Exception e) { // ถ้าการเชื่อมหลุด/เกิดปัญหา → พัก 2 วินาที แล้ววนใหม่
-                    System.err.printf("[%-10s|PUB] error: %s (retry 2s)%n", st.name, e.getMessage());
-                    sleep(2);
+                    msg = String.format("%s | %s | pid=%d @ %s", st.name, role, st.pid, Instant.now()); //สร้างข้อความที่จะส่ง
                 }
+                long t0 = System.nanoTime();
+                send(jedis, a, CH_BROADCAST, msg); //ส่งข้อความไปยังช่อง CH_BROADCAST (หรือ stream:broadcast)
+                METRICS.published(1, System.nanoTime() - t0);
+            } // error → Scheduler พิมพ์ + รอตาม backoff ให้
+        }
+    }
+
+    // --------- BatchPublisher (--publish-mode batch: คิว + pipeline PUBLISH เป็นชุด) ---------
+    static class BatchPublisher { // offer() เข้าคิว → flusher ส่งเป็นชุดเมื่อครบ --batch-size หรือรอครบ --batch-ms
+        // ข้อความขนาดคงที่: "<name> | <ROLE> | pid=<pid> | seq=<19 หลัก> | ts=<13 หลัก> | <body + ช่องว่าง>"
+        //        --probe on: "probe|<pid>|<seq 19 หลัก>|<wall ns 19 หลัก>|<name>|<body + ช่องว่าง>" (ts เขียนตอนส่งจริงใน flusher)
+        // buffer ทุกตัวมี header เขียนไว้แล้ว แต่ละข้อความแค่เขียน role/seq/ts/body ทับตำแหน่งเดิม (ไม่สร้าง String ใหม่)
+        final Args a; final State st; final JedisPool pool;
+        final ArrayBlockingQueue<byte[]> free;  // buffer ว่าง (จองไว้ตั้งแต่เริ่ม)
+        final ArrayBlockingQueue<byte[]> ready; // เขียนแล้ว รอส่ง
+        final int roleOff, seqOff, tsOff, bodyOff, width; // roleOff = -1: ไม่มี role (probe)
+        final boolean probe;
+        final AtomicLong seq = new AtomicLong();
+        final LongAdder sent = new LongAdder(), dropped = new LongAdder(), batches = new LongAdder();
+        volatile boolean closed = false;
+
+        static final byte[] BOSS = "BOSS  ".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+        static final byte[] WORKER = "WORKER".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+
+        BatchPublisher(Args a, State s, JedisPool p) {
+            this.a = a; this.st = s; this.pool = p;
+            this.probe = a.probe;
+            byte[] h;
+            if (probe) {
+                String head = "probe|" + s.pid + "|";
+                roleOff = -1;
+                seqOff = head.length();
+                tsOff = seqOff + 20;
+                bodyOff = tsOff + 20 + utf8Len(s.name) + 1;
+                h = (head + "0".repeat(19) + "|" + "0".repeat(19) + "|" + s.name + "|").getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            } else {
+                String head = s.name + " | ";
+                String pidPart = " | pid=" + s.pid + " | seq=";
+                roleOff = utf8Len(head);
+                seqOff = roleOff + 6 + pidPart.length();
+                tsOff = seqOff + 19 + " | ts=".length();
+                bodyOff = tsOff + 13 + " | ".length();
+                h = (head + "WORKER" + pidPart + "0".repeat(19) + " | ts=" + "0".repeat(13) + " | ")
+                        .getBytes(java.nio.charset.StandardCharsets.UTF_8);
             }
+            width = Math.max(a.msgBytes, bodyOff); // header ยาวกว่า --msg-bytes → ใช้ความยาว header
+            byte[] template = new byte[width];
+            Arrays.fill(template, (byte) ' ');
+            System.arraycopy(h, 0, template, 0, h.length);
+            free = new ArrayBlockingQueue<>(a.publishQueue);
+            ready = new ArrayBlockingQueue<>(a.publishQueue);
+            for (int i = 0; i < a.publishQueue; i++) free.add(template.clone());
+        }
+
+        static int utf8Len(String s) { return s.getBytes(java.nio.charset.StandardCharsets.UTF_8).length; }
+
+        static void writeDigits(byte[] b, int off, int width, long v) { // เลขฐาน 10 ชิดขวา เติม 0 (ไม่สร้าง String)
+            for (int i = off + width - 1; i >= off; i--) { b[i] = (byte) ('0' + (v % 10)); v /= 10; }
+        }
+
+        boolean offer(byte[] body) { // API สำหรับผู้ส่ง | false = ถูกทิ้ง (--backpressure drop หรือกำลังปิด)
+            if (closed) return false;
+            byte[] buf;
+            if ("drop".equals(a.backpressure)) {
+                buf = free.poll();
+            } else {
+                try { buf = free.poll(a.timeoutMs, TimeUnit.MILLISECONDS); } // block: รอให้ flusher คืน buffer (Redis ช้า = ผู้ส่งช้าตาม)
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); buf = null; }
+            }
+            if (buf == null) { dropped.increment(); return false; }
+            if (roleOff >= 0) System.arraycopy(st.isLeader ? BOSS : WORKER, 0, buf, roleOff, 6);
+            writeDigits(buf, seqOff, 19, seq.incrementAndGet());
+            if (!probe) writeDigits(buf, tsOff, 13, System.currentTimeMillis());
+            int n = 0;
+            if (body != null) { n = Math.min(body.length, width - bodyOff); System.arraycopy(body, 0, buf, bodyOff, n); }
+            Arrays.fill(buf, bodyOff + n, width, (byte) ' ');
+            ready.add(buf); // ไม่มีทางเต็ม: ready จุได้เท่าจำนวน buffer ทั้งหมด
+            return true;
+        }
+
+        static final CommandObjects CMD = new CommandObjects(); // สร้าง argument ของ PUBLISH/XADD แบบเดียวกับ Pipeline (ไม่ผูกกับ connection)
+
+        Runnable flusher() {
+            return () -> {
+                List<byte[]> batch = new ArrayList<>(a.batchSize);
+                Backoff backoff = new Backoff(200, a.retryMaxMs);
+                boolean streams = "streams".equals(a.transport);
+                XAddParams trim = streamTrim(a);
+                while (!closed || !ready.isEmpty() || !batch.isEmpty()) {
+                    try {
+                        if (batch.isEmpty()) fill(batch); // ถ้าส่งไม่สำเร็จ ส่วนที่ยังไม่ได้คำตอบยังอยู่ใน batch → ส่งซ้ำเฉพาะส่วนนั้น
+                        if (batch.isEmpty()) continue;
+                        long t0 = System.nanoTime();
+                        int acked = 0; // จำนวนข้อความต้นชุดที่ Redis ตอบแล้ว
+                        try (Jedis j = pool.getResource()) {
+                            // เขียนทุกคำสั่งลง buffer ของ connection แล้วอ่านคำตอบทีละตัว (ยัง 1 round trip ต่อชุดเหมือน Pipeline)
+                            // ต่างจาก p.sync() ตรงที่รู้ว่าได้คำตอบถึงข้อความไหน ถ้า connection หลุดกลางชุด
+                            Connection c = j.getConnection();
+                            for (byte[] b : batch) {
+                                if (probe) writeDigits(b, tsOff, 19, wallNanos()); // เวลาส่ง = ตอนส่งให้ Redis (ไม่นับเวลารอในคิว)
+                                c.sendCommand(streams
+                                        ? CMD.xadd(STREAM_BROADCAST_BIN, trim, Map.of(STREAM_FIELD_BIN, b)).getArguments()
+                                        : CMD.publish(CH_BROADCAST_BIN, b).getArguments());
+                            }
+                            try {
+                                for (; acked < batch.size(); acked++) {
+                                    try { c.getOne(); } // getOne() flush ก่อนอ่านคำตอบแรก
+                                    catch (JedisDataException e) { // Redis รับไปแล้วแต่ปฏิเสธ (เช่น key ผิดชนิด) → ส่งซ้ำก็ไม่ผ่าน นับว่าจบ
+                                        if (st.verbose) System.err.printf("[%-10s|BATCH] rejected: %s%n", st.name, e.getMessage());
+                                    }
+                                }
+                            } finally {
+                                if (acked > 0) { // ส่วนที่ได้คำตอบแล้วคืน buffer ทันที ไม่ส่งซ้ำ (กันข้อความซ้ำ)
+                                    sent.add(acked);
+                                    List<byte[]> done = batch.subList(0, acked);
+                                    free.addAll(done);
+                                    done.clear();
+                                }
+                            }
+                        }
+                        batches.increment();
+                        METRICS.published(acked, System.nanoTime() - t0);
+                        backoff.reset();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        long d = backoff.next();
+                        System.err.printf("[%-10s|BATCH] error: %s (retry %dms, %d queued)%n", st.name, e.getMessage(), d, ready.size() + batch.size());
+                        if (closed) return; // กำลังปิดและ Redis ใช้ไม่ได้ → เลิกส่ง
+                        sleepMs(d);
+                    }
+                }
+            };
+        }
+
+        void fill(List<byte[]> batch) throws InterruptedException { // รอข้อความแรก แล้วเก็บต่อจนครบ batchSize หรือครบ batchMs
+            byte[] first = ready.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) return;
+            batch.add(first);
+            long deadline = System.nanoTime() + a.batchMs * 1_000_000L;
+            while (batch.size() < a.batchSize) {
+                ready.drainTo(batch, a.batchSize - batch.size());
+                if (batch.size() >= a.batchSize) break;
+                long left = deadline - System.nanoTime();
+                if (left <= 0) break;
+                byte[] b = ready.poll(left, TimeUnit.NANOSECONDS);
+                if (b == null) break;
+                batch.add(b);
+            }
+        }
+
+        Runnable generator() { // ตัวสร้างข้อความในตัว (--publish-rate ข้อความ/วินาที) ใช้แทน Publisher เดิม
+            return () -> {
+                long start = System.nanoTime(), made = 0;
+                while (!st.shuttingDown && !closed) {
+                    long due = (System.nanoTime() - start) * a.publishRate / 1_000_000_000L; // ควรสร้างไปแล้วกี่ข้อความ
+                    if (made >= due) { LockSupport.parkNanos(200_000); continue; }
+                    if (due - made > a.publishRate) made = due - a.publishRate; // ค้างเกิน 1 วินาที (ถูก block) → ไม่เร่งชดเชยเกินนั้น
+                    offer(null);
+                    made++; // นับทั้งที่ส่งได้และถูกทิ้ง → อัตราไม่เร่งชดเชยตอน Redis ช้า
+                }
+            };
+        }
+
+        Runnable reporter() { // Scheduler เรียกทุก 5s
+            long[] last = {0, 0, 0, System.nanoTime()};
+            return () -> {
+                long now = System.nanoTime();
+                if (now - last[3] < 1_000_000_000L) return; // รอบแรก (เริ่มทันที) ยังไม่มีอะไรให้รายงาน
+                long s = sent.sum(), d = dropped.sum(), b = batches.sum();
+                long ds = s - last[0], db = b - last[2];
+                LOG.printf("[%-10s|BATCH] sent=%d/s dropped=%d avgBatch=%.1f queued=%d total=%d%n",
+                        st.name, ds * 1_000_000_000L / (now - last[3]), d - last[1], db == 0 ? 0.0 : (double) ds / db, ready.size(), s);
+                last[0] = s; last[1] = d; last[2] = b; last[3] = now;
+            };
+        }
+
+        void close(long waitMs) { // ตอนปิด: หยุดรับ แล้วรอ flusher ส่งที่ค้างให้หมด (ไม่เกิน waitMs)
+            // ส่งหมด = buffer กลับมาอยู่ใน free ครบทุกตัว | ดูแค่ ready ไม่พอ: fill() ย้ายออกจาก ready ไปไว้ใน batch ของ flusher
+            // แล้วรอเก็บต่อได้อีกถึง --batch-ms ช่วงนั้น ready ว่างทั้งที่ยังไม่ได้ส่ง (hook ปิด pool ต่อเลย = ข้อความหาย)
+            closed = true;
+            long end = System.currentTimeMillis() + waitMs;
+            while (free.size() < a.publishQueue && System.currentTimeMillis() < end) sleepMs(5);
         }
     }
 
@@ -132,94 +1176,315 @@ public class NodeApp{
 
     // --------- Coordinator (HB + election + presence publish + delayed removal) ---------
     static class Coordinator implements Runnable { // thread Coordinator = ระบบประสานงานกลาง ดูแลสมาชิก, เลือกหัวหน้า, แจ้งสภาพแวดล้อมให้ทุกคนรู้
-        final Args a; final State st;
-        Coordinator(Args a, State s) { this.a = a; this.st = s; }
+        final Args a; final State st; final JedisPool pool;
+        final PresenceEncoder presenceEncoder; // --presence-format binary
+        boolean publishedPresence = false; // tick ก่อนหน้าเราเป็นคนส่ง presence ไหม (ถ้าเพิ่งเริ่มส่ง ต้องเริ่ม epoch ใหม่)
+        Coordinator(Args a, State s, JedisPool p) {
+            this.a = a; this.st = s; this.pool = p;
+            this.presenceEncoder = new PresenceEncoder(a.presenceFullEvery);
+            this.detector = "phi".equals(a.failureDetector) ? new PhiAccrualDetector(a.phiThreshold, a.tickMs) : null;
+        }
 
-        static final int HB_TTL_SEC = 3; // heartbeat มีอายุ 3 วินาที
-        static final long REMOVE_DELAY_MS = 20_000; // 20 วินาที ถ้าหายไปนานเกินนี้ค่อยลบชื่อออกจากรายการสมาชิก
+        final PhiAccrualDetector detector; // --failure-detector phi (null = ใช้ TTL แบบเดิม)
+        boolean registered = false;
+        long lastStartNs = 0; // เวลาเริ่ม tick ก่อนหน้า (วัดว่า tick มาตรงรอบไหม)
+        double jitterMs = 0; // ค่าเฉลี่ย (EWMA) ของ |ระยะห่างจริง - tickMs|
 
-        @Override public void run() {
-            // ใส่ตัวเองและตั้งข้อมูลโหนด
-           
-            try (Jedis j = newJedis(a.host, a.port, a.pass)) {  // สร้าง client เชื่อมไปยัง Redis server
-                j.zadd(ZSET_MEMBERS, st.pid, Long.toString(st.pid)); //เพิ่มสมาชิกใหม่ลงใน ZSET_MEMBERS database โดยใช้ pid เป็น score และ value // database เล็ก ๆ สำหรับเก็บข้อมูล
-                // ZSET_MEMBERS = สมาชิก (members) ที่อยู่ใน Redis Sorted Set (ZSET)
-                /*  ZSET (Sorted Set) ใน Redis คือโครงสร้างข้อมูลที่เก็บค่า (member) โดยแต่ละค่า มีคะแนน (score) กำกับ
-                    Redis จะเก็บข้อมูลเป็นลำดับเรียงตาม score (จากน้อยไปมาก)
-                    ใช้สำหรับ ranking, leaderboards, priority queues ฯลฯ   */ 
-
-                long now = System.currentTimeMillis(); //ดึงเวลาปัจจุบันเป็นมิลลิวินาที 
-
-                j.hset(INFO_KEY(st.pid), Map.of( //คำสั่ง Redis HSET เอาไว้เก็บข้อมูลเป็น Hash (คล้าย row ใน relational DB) | INFO_KEY(st.pid) = "node:info:<pid>" 
-                        "name", st.name,
-                        "startedAt", Long.toString(now), 
-                        "lastSeen", Long.toString(now) // lastSeen = now ตอนเริ่มต้น (ยังไม่ต้องมี heartbeat เพราะเพิ่งเริ่มต้น
-                ));//จัดข้อมูลเป็น record คล้าย ๆ กับ row ในตาราง database 
-
-                /*  j.hset(...) → คำสั่ง Redis HSET เอาไว้เก็บข้อมูลเป็น Hash (คล้าย row ใน relational DB)
-                    INFO_KEY(st.pid) → "node:info:<pid>"    
-                    Map.of(...) → สร้างแผนที่ (map) ที่มีคีย์-ค่า (key-value pairs) ดังนี้:
-                        "name" → st.name (ชื่อโหนด)
-                        "startedAt" → Long.toString(now) (เวลาที่เริ่มต้นเป็นสตริง)
-                        "lastSeen" → Long.toString(now) (เวลาที่เห็นล่าสุดเป็นสตริง)
-                */ 
-
-            }
-
-            while (!st.shuttingDown && !Thread.currentThread().isInterrupted()) {
-                try (Jedis j = newJedis(a.host, a.port, a.pass)) {
-                    long now = System.currentTimeMillis();
+        @Override public void run() { // 1 ครั้งที่ run = 1 tick | Scheduler เรียกทุก --tick-ms (error → backoff)
+            long startNs = System.nanoTime();
+            if (lastStartNs != 0) jitterMs = 0.8 * jitterMs + 0.2 * Math.abs((startNs - lastStartNs) / 1e6 - a.tickMs);
+            lastStartNs = startNs;
+            if (st.verbose) METRICS.jitterMs = jitterMs;
+            METRICS.beginTick();
+            try (Jedis j = pool.getResource()) { // ใช้ connection เดิมใน pool ทุก tick ไม่ต้อง connect + AUTH ใหม่
+                if (!registered) { register(j); registered = true; } // ใส่ตัวเองและตั้งข้อมูลโหนด (ครั้งแรกครั้งเดียว)
+                tick(j);
+            } finally {
+                METRICS.endTick(System.nanoTime() - startNs, a.tickMs); // นานกว่า --tick-ms = overrun (เตือนก่อน lease/TTL หลุด)
+            }
+        }
 
-                    // 1) Heartbeat (TTL 3s) + อัพเดต lastSeen
-                    j.setex(HB_KEY(st.pid), HB_TTL_SEC, Long.toString(now)); //ตั้งค่า heartbeat โดยมีอายุ 3 วินาที
-                    /*
-                        String setex(String key, int seconds, String value)
-                            key → ชื่อ key ที่ต้องการเก็บค่า
-                            seconds → TTL (time-to-live) อายุของ key หน่วยเป็นวินาที
-                            value → ค่าที่จะเก็บใน key (เป็น String)
-                    */ 
-                    j.hset(INFO_KEY(st.pid), "lastSeen", Long.toString(now));//อัพเดต lastSeen
-
-                    // 2) ลบสมาชิก "ที่ตายแล้วเกิน 20s" เท่านั้น
-                    for (String m : j.zrevrange(ZSET_MEMBERS, 0, -1)) {// ดึงข้อมูลจาก ZSET_MEMBERS database เริ่ม 0 ถึง สุดท้าย
-                        // zrevrange = ดึงข้อมูลจาก ZSET โดยเรียงจากมากไปน้อย // -1 = สุดท้าย 
-                        long pid = Long.parseLong(m); 
-                        long ttl = j.ttl(HB_KEY(pid)); // j.ttl(...) ใช้ตรวจสอบว่า key นั้น ๆ จะ หมดอายุในอีกกี่วินาที | ถ้าttlเป็น0หรือน้อยกว่า0จะลบออก
-                        if (ttl <= 0) { // ไม่มี HB แล้ว 
-                            String ls = j.hget(INFO_KEY(pid), "lastSeen");//เอาข้อมูลlastScreenจาก INFO_KEY 
-                            long lastSeen = (ls != null) ? Long.parseLong(ls) : 0L; //ถ้าlsไม่ใช่nullจะเอาข้อมูลออกมาเป็นlong | 0L = 0 แบบ long
-                            if (now - lastSeen >= REMOVE_DELAY_MS) { //ถ้าnow-lastSeen>=20sจะลบออก
-                                j.zrem(ZSET_MEMBERS, m); //ลบออกจาก ZSET_MEMBERS database
-                                j.del(INFO_KEY(pid)); //ลบออกจาก INFO_KEY  record
-                            }
-                        }
-                    }
+        long hbTtlMs() { // adaptive heartbeat: tick ของเรากระตุก (GC, Redis ช้า) → ยืด TTL ไม่ให้ตัวเองหลุดเป็น DISAPPEAR เพราะมาช้าไปนิดเดียว
+            return Math.max(a.hbTtlMs, a.tickMs + (long) (4 * jitterMs));
+        }
+
+        boolean judgeAlive(long pid, boolean ttlAlive, long lastSeen) { // ตัดสินว่า alive ด้วย TTL หรือ phi
+            if (detector == null) return ttlAlive;
+            if (pid == st.pid) return true; // ตัวเองเพิ่ง heartbeat
+            long local = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()); // นาฬิกาของเราเอง (ไม่เทียบกับนาฬิกาเครื่องอื่น)
+            detector.heartbeat(pid, lastSeen, local);
+            return detector.isAvailable(pid, local);
+        }
 
-                    // 3) เลือก leader จาก "alive" เท่านั้น
-                    List<Long> alive = aliveMembers(j);  
-                    long newLeader = alive.isEmpty() ? -1 : Collections.max(alive); // ถ้าไม่มีใคร alive newLeader=-1 ถ้ามีคนalive newLeader=pidที่มากที่สุด
-                    if (newLeader != st.leaderPid) { //ถ้าnewLeaderไม่เท่ากับleaderPid
-                        st.leaderPid = newLeader; //อัพเดตleaderPid
+        void register(Jedis j) {
+            METRICS.call("score".equals(a.membership) ? 1 : 2);
+            if ("score".equals(a.membership)) { // แค่ ZADD ตัวเองพร้อม deadline (เวลา Redis + TTL ของเรา)
+                touchSeen(j, SEEN_MEMBER(st.pid, st.name), hbTtlMs(), false);
+                return;
+            }
+            j.zadd(ZSET_MEMBERS, st.pid, Long.toString(st.pid)); //เพิ่มสมาชิกใหม่ลงใน ZSET_MEMBERS database โดยใช้ pid เป็น score และ value // database เล็ก ๆ สำหรับเก็บข้อมูล
+            // ZSET_MEMBERS = สมาชิก (members) ที่อยู่ใน Redis Sorted Set (ZSET)
+            /*  ZSET (Sorted Set) ใน Redis คือโครงสร้างข้อมูลที่เก็บค่า (member) โดยแต่ละค่า มีคะแนน (score) กำกับ
+                Redis จะเก็บข้อมูลเป็นลำดับเรียงตาม score (จากน้อยไปมาก)
+                ใช้สำหรับ ranking, leaderboards, priority queues ฯลฯ   */ 
 
-                        if(newLeader == st.pid){ //check ว่าตัวเองคือleaderไหม
-                            st.isLeader = true; //ถ้าnewLeaderเท่ากับpidของตัวเอง isLeader=true 
-                        }else{
-                            st.isLeader = false; // ถ้าไม่เท่ากับisLeader=false
-                        }
-                        // st.isLeader = (newLeader == st.pid); 
-                        j.publish(CH_CONTROL, "control:leader " + newLeader); //ส่งข้อความจากช่อง CH_CONTROL บอกทุกคนว่าleaderคือใคร
-                        logRole(st);
+            long now = System.currentTimeMillis(); //ดึงเวลาปัจจุบันเป็นมิลลิวินาที 
+
+            j.hset(INFO_KEY(st.pid), Map.of( //คำสั่ง Redis HSET เอาไว้เก็บข้อมูลเป็น Hash (คล้าย row ใน relational DB) | INFO_KEY(st.pid) = "node:info:<pid>" 
+                    "name", st.name,
+                    "startedAt", Long.toString(now), 
+                    "lastSeen", Long.toString(now) // lastSeen = now ตอนเริ่มต้น (ยังไม่ต้องมี heartbeat เพราะเพิ่งเริ่มต้น
+            ));//จัดข้อมูลเป็น record คล้าย ๆ กับ row ในตาราง database 
+
+            /*  j.hset(...) → คำสั่ง Redis HSET เอาไว้เก็บข้อมูลเป็น Hash (คล้าย row ใน relational DB)
+                INFO_KEY(st.pid) → "node:info:<pid>"    
+                Map.of(...) → สร้างแผนที่ (map) ที่มีคีย์-ค่า (key-value pairs) ดังนี้:
+                    "name" → st.name (ชื่อโหนด)
+                    "startedAt" → Long.toString(now) (เวลาที่เริ่มต้นเป็นสตริง)
+                    "lastSeen" → Long.toString(now) (เวลาที่เห็นล่าสุดเป็นสตริง)
+            */ 
+        }
+
+        void tick(Jedis j) { // งาน 1 รอบของ coordinator
+            if (leased()) leaseElect(j); // --election lease: เลือก/ต่ออายุ leader ด้วยคำสั่งเดียว ไม่ขึ้นกับจำนวนสมาชิก
+            // follower (--presence leader): แค่ heartbeat 1 round trip ที่เหลือดูจาก view
+            if ("leader".equals(a.presence) && (leased() ? !st.isLeader : followView())) {
+                heartbeat(j, System.currentTimeMillis());
+                return;
+            }
+            if ("score".equals(a.membership)) tickScore(j);
+            else if ("script".equals(a.coordMode)) tickScript(j);
+            else tickLegacy(j);
+        }
+
+        // Lua: heartbeat ตัวเอง + ลบสมาชิกที่ตายเกิน removeDelayMs + คืน snapshot ของที่เหลือ ในคำสั่งเดียว (atomic)
+        // คืนค่าเป็น list แบน ๆ: pid, pttl, name, lastSeen, pid, pttl, name, lastSeen, ...
+        // หมายเหตุ: script แตะคีย์ hb:* / node:info:* ที่ไม่ได้ส่งมาใน KEYS จึงใช้ได้กับ Redis ตัวเดียว (ไม่ใช่ Redis Cluster)
+        static final LuaScript SNAPSHOT_SCRIPT = new LuaScript(String.join("\n",
+                "local pid, now, delay = ARGV[1], tonumber(ARGV[2]), tonumber(ARGV[4])",
+                "redis.call('PSETEX', 'hb:' .. pid, ARGV[3], ARGV[2])",
+                "redis.call('HSET', 'node:info:' .. pid, 'lastSeen', ARGV[2])",
+                "local out = {}",
+                "for _, m in ipairs(redis.call('ZREVRANGE', KEYS[1], 0, -1)) do",
+                "  local ttl = redis.call('PTTL', 'hb:' .. m)",
+                "  local info = redis.call('HMGET', 'node:info:' .. m, 'name', 'lastSeen')",
+                "  local lastSeen = tonumber(info[2]) or 0",
+                "  if ttl <= 0 and now - lastSeen >= delay then",
+                "    redis.call('ZREM', KEYS[1], m)",
+                "    redis.call('DEL', 'node:info:' .. m)",
+                "  else",
+                "    out[#out + 1] = m",
+                "    out[#out + 1] = ttl",
+                "    out[#out + 1] = info[1] or ''",
+                "    out[#out + 1] = lastSeen",
+                "  end",
+                "end",
+                "return out"));
+
+        Snapshot collectSnapshot(Jedis j, long now) { // round trip ที่ 1: EVALSHA ครั้งเดียวได้สมาชิกครบทุกตัว
+            METRICS.call(1);
+            List<?> raw = (List<?>) SNAPSHOT_SCRIPT.eval(j, List.of(ZSET_MEMBERS),
+                    List.of(Long.toString(st.pid), Long.toString(now), Long.toString(hbTtlMs()), Long.toString(a.removeDelayMs)));
+            List<Member> members = new ArrayList<>(raw.size() / 4);
+            for (int i = 0; i + 3 < raw.size(); i += 4) {
+                long pid = Long.parseLong(raw.get(i).toString());
+                long ttl = (Long) raw.get(i + 1);
+                String name = raw.get(i + 2).toString();
+                long lastSeen = (Long) raw.get(i + 3);
+                members.add(new Member(pid, name.isEmpty() ? "node-" + pid : name, judgeAlive(pid, ttl > 0, lastSeen), lastSeen));
+            }
+            if (detector != null) detector.retain(members);
+            return new Snapshot(now, members);
+        }
+
+        void tickScript(Jedis j) { // 1 tick = 2 round trips ไม่ว่าจะมีสมาชิกกี่ตัว
+            publishFromSnapshot(j, collectSnapshot(j, System.currentTimeMillis()));
+        }
+
+        void publishFromSnapshot(Jedis j, Snapshot snap) { // เลือก leader + ส่ง presence จาก snapshot เดียว
+            Pipeline p = j.pipelined(); // round trip ที่ 2: ประกาศ leader (ถ้าเปลี่ยน) + presence ส่งรวดเดียว
+            long newLeader = snap.maxAlivePid();
+            if (!leased() && newLeader != st.leaderPid) { // lease: leader มาจาก leaseElect แล้ว
+                st.leaderPid = newLeader;
+                st.isLeader = (newLeader == st.pid);
+                st.leaderAt = System.currentTimeMillis();
+                send(p, a, CH_CONTROL, "control:leader " + newLeader);
+                logRole(st);
+            }
+            boolean publish = publishesPresence();
+            if (publish && "binary".equals(a.presenceFormat)) {
+                if (!publishedPresence) presenceEncoder.reset(); // เพิ่งได้เป็นผู้ส่ง → epoch ใหม่ + FULL
+                p.publish(CH_PRESENCE_BIN, presenceEncoder.encode(st.pid, st.leaderPid, st.fencingToken, snap.members));
+            } else if (publish) {
+                p.publish(CH_PRESENCE, presencePayload(st.pid, st.leaderPid, st.fencingToken, snap));
+            }
+            publishedPresence = publish;
+            p.sync();
+            METRICS.call(1);
+        }
+
+        // Lua (--membership score): heartbeat + ลบตัวที่เลย deadline เกิน removeDelay + อ่านที่เหลือ พร้อมตัดสิน alive ด้วยเวลา Redis ทั้งหมด
+        // ARGV: member ของเรา, removeDelay, TTL ของเรา (adaptive) | alive = deadline ของคนนั้น (ที่เขาเขียนเองด้วย TTL ของเขา) > now
+        // คืน list แบน ๆ: now, member, deadline, alive(1/0), member, deadline, alive, ...
+        static final LuaScript SCORE_SNAPSHOT_SCRIPT = new LuaScript(String.join("\n",
+                "local t = redis.call('TIME')",
+                "local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)",
+                "local cutoff = now - tonumber(ARGV[2])",
+                "redis.call('ZADD', KEYS[1], now + tonumber(ARGV[3]), ARGV[1])",
+                "redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', cutoff)",
+                "local out = {now}",
+                "local r = redis.call('ZRANGEBYSCORE', KEYS[1], '(' .. cutoff, '+inf', 'WITHSCORES')",
+                "for i = 1, #r, 2 do",
+                "  local deadline = tonumber(r[i + 1])",
+                "  out[#out + 1] = r[i]",
+                "  out[#out + 1] = deadline",
+                "  out[#out + 1] = (deadline > now) and 1 or 0",
+                "end",
+                "return out"));
+
+        Snapshot collectScoreSnapshot(Jedis j) { // --membership score: 1 EVALSHA (round trip ที่ 1) ไม่ว่าจะมีสมาชิกกี่ตัว
+            METRICS.call(1);
+            List<?> raw = (List<?>) SCORE_SNAPSHOT_SCRIPT.eval(j, List.of(ZSET_SEEN),
+                    List.of(SEEN_MEMBER(st.pid, st.name), Long.toString(a.removeDelayMs), Long.toString(hbTtlMs()))); // deadline ของเราด้วย TTL แบบ adaptive ของเรา
+            long now = (Long) raw.get(0); // เวลา Redis (นาฬิกาเดียวกับ deadline)
+            List<Member> members = new ArrayList<>(raw.size() / 3);
+            for (int i = 1; i + 2 < raw.size(); i += 3) {
+                String m = raw.get(i).toString();
+                long deadline = (Long) raw.get(i + 1); // เปลี่ยนทุก heartbeat → phi ใช้แทน lastSeen ได้ (ดูแค่ว่าเปลี่ยน)
+                long pid = seenPid(m);
+                members.add(new Member(pid, seenName(m), judgeAlive(pid, (Long) raw.get(i + 2) == 1, deadline), deadline));
+            }
+            if (detector != null) detector.retain(members);
+            members.sort((x, y) -> Long.compare(y.pid, x.pid)); // เรียง pid มาก→น้อย ให้ตารางออกมาเหมือนโหมดเดิม
+            return new Snapshot(now, members);
+        }
+
+        void tickScore(Jedis j) { // 1 tick = 2 round trips: EVALSHA อ่าน/เขียน membership + pipeline ประกาศผล
+            publishFromSnapshot(j, collectScoreSnapshot(j));
+        }
+
+        boolean leased() { return "lease".equals(a.election); }
+
+        // Lua: ก่อนอื่นดัน epoch ให้ไม่ต่ำกว่า token ที่เรารู้ (ARGV[3]) → ถ้าคีย์ epoch หาย (Redis restart ไม่มี persistence / FLUSHDB) token ไม่ย้อนกลับไปเริ่มที่ 1
+        //      ถ้ายังไม่มี leader → INCR token แล้ว SET leader "<pid>:<token>" PX lease (ได้ lease)
+        //      ถ้าเราถืออยู่ → PEXPIRE ต่ออายุ | ถ้าคนอื่นถือ → แค่บอกว่าใคร
+        // คืน {สถานะ 0=คนอื่นถือ 1=เพิ่งได้ 2=ต่ออายุ, token, pid ของ leader}
+        static final LuaScript LEASE_SCRIPT = new LuaScript(String.join("\n",
+                "local known = tonumber(ARGV[3])",
+                "if known > (tonumber(redis.call('GET', KEYS[2])) or 0) then redis.call('SET', KEYS[2], known) end",
+                "local cur = redis.call('GET', KEYS[1])",
+                "if not cur then",
+                "  local t = redis.call('INCR', KEYS[2])",
+                "  redis.call('SET', KEYS[1], ARGV[1] .. ':' .. t, 'PX', ARGV[2])",
+                "  return {1, t, tonumber(ARGV[1])}",
+                "end",
+                "local pid, tok = string.match(cur, '^(%-?%d+):(%d+)$')",
+                "if pid == ARGV[1] then",
+                "  redis.call('PEXPIRE', KEYS[1], ARGV[2])",
+                "  return {2, tonumber(tok), tonumber(pid)}",
+                "end",
+                "return {0, tonumber(tok), tonumber(pid)}"));
+
+        // Lua: ปล่อย lease เฉพาะถ้ายังเป็นของเรา (token ตรง) กันลบ lease ของ leader คนใหม่
+        static final LuaScript RELEASE_SCRIPT = new LuaScript(
+                "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end return 0");
+
+        void leaseElect(Jedis j) { // 1 EVALSHA ต่อ tick ไม่ว่าจะมีสมาชิกกี่ตัว
+            METRICS.call(1);
+            List<?> r = (List<?>) LEASE_SCRIPT.eval(j, List.of(LEADER_KEY, LEADER_EPOCH_KEY),
+                    List.of(Long.toString(st.pid), Long.toString(a.leaseMs), Long.toString(st.fencingToken)));
+            long status = (Long) r.get(0), token = (Long) r.get(1), holder = (Long) r.get(2);
+            // token ต่ำกว่าที่รู้: ถ้าเป็น leader คนเดิม = อ่านได้ก่อนประกาศที่ใหม่กว่า → ไม่ย้อนกลับ
+            // แต่ถ้า Redis บอกว่าเราถือ lease (status 1/2) หรือคีย์ lease เปลี่ยนเจ้าของแล้ว → เชื่อ Redis (epoch หาย token เริ่มใหม่ ไม่งั้นจะไม่มีใครยอมรับ leader อีกเลย)
+            if (token < st.fencingToken && status == 0 && holder == st.leaderPid) return;
+            boolean changed = holder != st.leaderPid;
+            st.fencingToken = token;
+            st.leaderPid = holder;
+            st.isLeader = (holder == st.pid);
+            if (status == 1) send(j, a, CH_CONTROL, "control:leader " + holder + " " + token); // เพิ่งได้ lease → ประกาศพร้อม token
+            if (changed) logRole(st);
+        }
+
+        boolean followView() { // true = เป็น follower ที่เชื่อ view ได้ | false = ต้องทำ tick เต็ม (เป็น leader / view เก่า / leader ใน view ตายแล้ว)
+            MembershipView v = st.view;
+            long leader = v.leaderPid();
+            Presence pr = v.last;
+            // presence ของตัวเอง (รอบก่อน) หรือที่ได้ก่อนเราตัดสิน leader ใหม่ → ไม่ตาม (ไม่งั้น leader ที่เพิ่งส่งต่อจะกลับมาเป็น BOSS เอง)
+            if (pr == null || pr.from == st.pid || v.updatedAt < st.leaderAt) return false;
+            if (!v.fresh(System.currentTimeMillis()) || !v.aliveMembers().contains(leader)) return false;
+            if (leader != st.leaderPid) { // รับ leader ตาม presence (leader ประกาศใน control ไปแล้ว)
+                st.leaderPid = leader;
+                st.isLeader = (leader == st.pid);
+                logRole(st);
+            }
+            return !st.isLeader;
+        }
+
+        boolean publishesPresence() { return !"leader".equals(a.presence) || st.isLeader; } // --presence leader: ส่งเฉพาะ leader
+
+        void heartbeat(Jedis j, long now) { // heartbeat อย่างเดียว ไม่อ่านสมาชิก ไม่ลบ ไม่ส่ง presence
+            METRICS.call(1);
+            if ("score".equals(a.membership)) {
+                touchSeen(j, SEEN_MEMBER(st.pid, st.name), hbTtlMs(), false);
+                return;
+            }
+            Pipeline p = j.pipelined();
+            p.psetex(HB_KEY(st.pid), hbTtlMs(), Long.toString(now));
+            p.hset(INFO_KEY(st.pid), "lastSeen", Long.toString(now));
+            p.sync();
+        }
+
+        void tickLegacy(Jedis j) { // แบบเดิม: ถามทีละสมาชิก O(N) round trips ต่อ tick
+            long now = System.currentTimeMillis();
+
+            // 1) Heartbeat (TTL 3s) + อัพเดต lastSeen
+            j.psetex(HB_KEY(st.pid), hbTtlMs(), Long.toString(now)); //ตั้งค่า heartbeat โดยมีอายุ 3 วินาที (หรือตาม --hb-ttl-ms)
+            /*
+                String psetex(String key, long milliseconds, String value)
+                    key → ชื่อ key ที่ต้องการเก็บค่า
+                    milliseconds → TTL (time-to-live) อายุของ key หน่วยเป็นมิลลิวินาที
+                    value → ค่าที่จะเก็บใน key (เป็น String)
+            */ 
+            j.hset(INFO_KEY(st.pid), "lastSeen", Long.toString(now));//อัพเดต lastSeen
+            METRICS.call(3); // psetex + hset + zrevrange ข้างล่าง
+
+            // 2) ลบสมาชิก "ที่ตายแล้วเกิน 20s" เท่านั้น
+            for (String m : j.zrevrange(ZSET_MEMBERS, 0, -1)) {// ดึงข้อมูลจาก ZSET_MEMBERS database เริ่ม 0 ถึง สุดท้าย
+                // zrevrange = ดึงข้อมูลจาก ZSET โดยเรียงจากมากไปน้อย // -1 = สุดท้าย 
+                long pid = Long.parseLong(m); 
+                long ttl = j.pttl(HB_KEY(pid)); // j.pttl(...) ใช้ตรวจสอบว่า key นั้น ๆ จะ หมดอายุในอีกกี่มิลลิวินาที | ถ้าttlเป็น0หรือน้อยกว่า0จะลบออก
+                METRICS.call(1);
+                if (ttl <= 0) { // ไม่มี HB แล้ว 
+                    String ls = j.hget(INFO_KEY(pid), "lastSeen");//เอาข้อมูลlastScreenจาก INFO_KEY 
+                    long lastSeen = (ls != null) ? Long.parseLong(ls) : 0L; //ถ้าlsไม่ใช่nullจะเอาข้อมูลออกมาเป็นlong | 0L = 0 แบบ long
+                    METRICS.call(1);
+                    if (now - lastSeen >= a.removeDelayMs) { //ถ้าnow-lastSeen>=20sจะลบออก
+                        METRICS.call(2);
+                        j.zrem(ZSET_MEMBERS, m); //ลบออกจาก ZSET_MEMBERS database
+                        j.del(INFO_KEY(pid)); //ลบออกจาก INFO_KEY  record
                     }
+                }
+            }
 
-                    // 4) ส่ง Presence Snapshot (รวมทั้ง ALIVE และ DEAD ที่ยังไม่ครบ 20s)
-                    publishPresenceWithStatus(j, st.leaderPid); //ส่งข้อความจากช่อง Presence บอกทุกคนว่าleaderคือใคร
+            // 3) เลือก leader จาก "alive" เท่านั้น (--election lease: ได้ leader จาก leaseElect แล้ว ไม่ต้องไล่ถามทุกคน)
+            List<Long> alive = leased() ? List.of() : aliveMembers(j);  
+            long newLeader = alive.isEmpty() ? -1 : Collections.max(alive); // ถ้าไม่มีใคร alive newLeader=-1 ถ้ามีคนalive newLeader=pidที่มากที่สุด
+            if (!leased() && newLeader != st.leaderPid) { //ถ้าnewLeaderไม่เท่ากับleaderPid
+                st.leaderPid = newLeader; //อัพเดตleaderPid
 
-                    sleep(2); //รอ2วินาที
-                } catch (Exception e) { 
-                    System.err.printf("[%-10s|COORD] error: %s (retry 2s)%n", st.name, e.getMessage());
-                    sleep(2);
+                if(newLeader == st.pid){ //check ว่าตัวเองคือleaderไหม
+                    st.isLeader = true; //ถ้าnewLeaderเท่ากับpidของตัวเอง isLeader=true 
+                }else{
+                    st.isLeader = false; // ถ้าไม่เท่ากับisLeader=false
                 }
+                // st.isLeader = (newLeader == st.pid); 
+                st.leaderAt = System.currentTimeMillis();
+                send(j, a, CH_CONTROL, "control:leader " + newLeader); //ส่งข้อความจากช่อง CH_CONTROL บอกทุกคนว่าleaderคือใคร
+                logRole(st);
             }
+
+            // 4) ส่ง Presence Snapshot (รวมทั้ง ALIVE และ DEAD ที่ยังไม่ครบ 20s)
+            if (publishesPresence()) publishPresenceWithStatus(j, st.pid, st.leaderPid, st.fencingToken); //ส่งข้อความจากช่อง Presence บอกทุกคนว่าleaderคือใคร
         }
     }// thread Coordinator = ระบบประสานงานกลาง ดูแลสมาชิก, เลือกหัวหน้า, แจ้งสภาพแวดล้อมให้ทุกคนรู้
 
@@ -232,8 +1497,36 @@ public class NodeApp{
             return "node-" + pid;
         }
     }
+    static class Member { // สมาชิก 1 ตัวใน snapshot
+        final long pid; final String name; final boolean alive; final long lastSeen;
+        Member(long pid, String name, boolean alive, long lastSeen) { this.pid = pid; this.name = name; this.alive = alive; this.lastSeen = lastSeen; }
+    }
+
+    static class Snapshot { // รายชื่อสมาชิกทั้งหมด ณ เวลาหนึ่ง (เรียง pid มาก→น้อย เหมือน zrevrange)
+        final long at; final List<Member> members;
+        Snapshot(long at, List<Member> members) { this.at = at; this.members = members; }
+
+        long maxAlivePid() { // leader = pid มากที่สุดที่ยัง alive | ไม่มีใคร = -1
+            long max = -1;
+            for (Member m : members) if (m.alive && m.pid > max) max = m.pid;
+            return max;
+        }
+    }
+
+    static String presencePayload(long from, long leaderPid, long token, Snapshot snap) { // รูปแบบเดียวกับ publishPresenceWithStatus แต่สร้างจาก snapshot ไม่ต้องถาม Redis
+        StringBuilder sb = new StringBuilder(16 + snap.members.size() * 24);
+        sb.append("presence: ").append(leaderPid).append('|');
+        for (int i = 0; i < snap.members.size(); i++) {
+            Member m = snap.members.get(i);
+            if (i > 0) sb.append(',');
+            sb.append(m.pid).append(':').append(m.name).append(':').append(m.alive ? 1 : 0);
+        }
+        sb.append('|').append(from).append('|').append(token);
+        return sb.toString();
+    }
+
     // --------- Presence helpers ---------๓๓๓๓๓๓๓ 
-    static void publishPresenceWithStatus(Jedis j, long leaderPid) { //ส่งข้อความจากช่อง Presence
+    static void publishPresenceWithStatus(Jedis j, long from, long leaderPid, long token) { //ส่งข้อความจากช่อง Presence | from = pid ผู้ส่ง | token = fencing token ที่ผู้ส่งรู้
         long now = System.currentTimeMillis();
         List<String> members = new ArrayList<>(j.zrevrange(ZSET_MEMBERS, 0, -1));//ดึงข้อมูลจาก ZSET_MEMBERS database เริ่ม 0 ถึง สุดท้าย น้อย→มาก
         String payloadMembers = members.stream().map(m -> { 
@@ -249,70 +1542,458 @@ public class NodeApp{
             */ 
             long pid = Long.parseLong(m);
             String name = safeName(j, pid);//ดึงชื่อจากช่อง INFO_KEY
-            long ttl = j.ttl(HB_KEY(pid));// j.ttl(...) ใช้ตรวจสอบว่า key นั้น ๆ จะ หมดอายุในอีกกี่วินาที | ถ้าttlเป็น0หรือน้อยกว่า0จะลบออก
+            long ttl = j.pttl(HB_KEY(pid));// j.pttl(...) ใช้ตรวจสอบว่า key นั้น ๆ จะ หมดอายุในอีกกี่มิลลิวินาที | ถ้าttlเป็น0หรือน้อยกว่า0จะลบออก
             int alive = (ttl > 0) ? 1 : 0; // ถ้า ttl > 0 แสดงว่าโหนดยังมี heartbeat อยู่ (alive=1) ถ้า ttl <= 0 แสดงว่าโหนดไม่มี heartbeat (alive=0)
             return pid + ":" + name + ":" + alive; 
         }).collect(Collectors.joining(",")); // .collect(Collectors.joining(",")) = รวมสตริงที่แปลงแล้วเป็นสตริงเดียว โดยคั่นด้วยเครื่องหมายจุลภาค (,)
         // members.stream() = เอาข้อมูลในlistมาใช้
 
-        String payload = "presence: " + leaderPid + "|" + payloadMembers;//ส่งข้อความจากช่อง Presence
+        String payload = "presence: " + leaderPid + "|" + payloadMembers + "|" + from + "|" + token;//ส่งข้อความจากช่อง Presence
         j.publish(CH_PRESENCE, payload); //ส่งข้อความจากช่อง Presence
+        METRICS.call(2 + 2 * members.size()); // zrevrange + (hget ชื่อ + pttl) ต่อสมาชิก + publish
     } // payloadMembers = pid1:name1:alive, pid2:name2:alive,...
 
     
 
-    static void renderPresenceTable(String localName, String payload) {
-        // payload ตัวอย่าง: "presence: 12345|12345:A:1,12300:B:1,12200:C:0"
+    static class Presence { // presence 1 ข้อความหลังแยกแล้ว: leader + สมาชิกทั้งหมด
+        final long leaderPid; final List<Member> members;
+        final long from; // pid ของผู้ส่ง (-1 = ข้อความแบบเก่าไม่มีบอก)
+        final long token; // fencing token ที่ผู้ส่งรู้ตอนส่ง (--election lease) | 0 = ไม่มี
+        Presence(long leaderPid, List<Member> members, long from, long token) {
+            this.leaderPid = leaderPid; this.members = members; this.from = from; this.token = token;
+        }
+    }
+
+    static boolean fenced(Args a, State s, Presence pr) { // --election lease: presence จากคนที่รู้ token เก่ากว่าเรา (leader ที่ถูกแทนแล้ว) → ทิ้ง
+        return "lease".equals(a.election) && pr.token < s.fencingToken;
+    }
+
+    static Presence parsePresence(String payload) { // แยกข้อความ presence แบบตัวอักษร (throw ถ้ารูปแบบผิด)
+        // payload ตัวอย่าง: "presence: 12345|12345:A:1,12300:B:1,12200:C:0|12300|7" (ส่วนท้าย = pid ผู้ส่ง | fencing token)
+        String body = payload.split("presence:\\s*")[1]; // แยกเอาเฉพาะส่วนที่เป็นข้อมูลจริง | split("presence:\\s*") = แยกข้อความโดยใช้ "presence:" ตามด้วยช่องว่าง 0 ตัวขึ้นไป เป็นตัวแบ่ง
+        String[] parts = body.split("\\|"); // แยกเอา leaderPid กับ รายการสมาชิก | split("\\|", 2) = แยกข้อความโดยใช้ | เป็นตัวแบ่ง โดยแยกได้สูงสุด 2 ส่วน
+        long leader = Long.parseLong(parts[0].trim()); //เอาleaderPidออกมา | trim() = ตัดช่องว่างออก
+        String members = parts.length > 1 ? parts[1] : ""; //เอารายการสมาชิกออกมา ถ้าไม่มีให้เป็นค่าว่าง
+        long from = parts.length > 2 ? Long.parseLong(parts[2].trim()) : -1; //ผู้ส่ง (ข้อความแบบเก่าไม่มี)
+        long token = parts.length > 3 ? Long.parseLong(parts[3].trim()) : 0;
+        List<Member> out = new ArrayList<>();
+        if (!members.isEmpty()) {
+            for (String item : members.split(",")) {
+                if (item.isBlank()) continue;
+                String[] kv = item.split(":"); //แยก pid, name, alive | split(":") = แยกข้อความโดยใช้ : เป็นตัวแบ่ง
+                long pid = Long.parseLong(kv[0]);
+                String name = kv.length > 1 ? kv[1] : ("node-" + pid);
+                int alive = (kv.length > 2) ? Integer.parseInt(kv[2]) : 1; // ถ้าไม่มีข้อมูล alive ให้ถือว่า alive=1 (ปลอดภัยไว้ก่อน)
+                out.add(new Member(pid, name, alive == 1, 0L)); // ข้อความ presence ไม่มี lastSeen มาด้วย
+            }
+        }
+        return new Presence(leader, out, from, token);
+    }
+
+    static void printPresenceTable(String localName, Presence pr) { // พิมพ์ตารางสมาชิก (ประกอบทั้งตารางก่อน แล้วส่งให้ LOG ทีเดียว)
+        LOG.print(formatPresenceTable(localName, pr));
+    }
+
+    static String formatPresenceTable(String localName, Presence pr) { // ตารางสมาชิกเป็นข้อความเดียว (แยกจากการพิมพ์ → วัดใน benchmark ได้)
+        StringBuilder sb = new StringBuilder(128 + pr.members.size() * 56);
+        Formatter f = new Formatter(sb);
+        f.format("%n[%-10s|PRESENCE] --- cluster members --- %s%n", localName, Instant.now()); // instant.now() = เวลาปัจจุบันแบบ iso
+        f.format("%-8s  %-20s  %-8s  %-6s%n", "PID", "NAME", "ROLE", "STATUS");
+        sb.append("-------------------------------------------------------\n");
+        if (!pr.members.isEmpty()) {
+            for (Member m : pr.members) {
+                String role = (m.pid == pr.leaderPid) ? "BOSS" : "WORKER"; // ถ้า pid ตรงกับ leaderPid ให้ role = BOSS ถ้าไม่ตรงให้ role = WORKER
+                String status = m.alive ? "ALIVE" : "DISAPPEAR"; // ถ้า alive=1 ให้ status=ALIVE ถ้า alive=0 ให้ status=DISAPPEAR
+                f.format("%-8d  %-20s  %-8s  %-6s%n", m.pid, m.name, role, status); //%-8d = เว้นวรรค8ช่องสำหรับตัวเลข | %-20s = เว้นวรรค20ช่องสำหรับstring | %-6s = เว้นวรรค6ช่องสำหรับstring
+            }
+        } else {
+            sb.append("(no members)\n");
+        }
+        sb.append("-------------------------------------------------------\n\n");
+        return sb.toString();
+    }
+
+    static Presence renderPresenceTable(String localName, String payload, long minToken) { // แยก + พิมพ์ | คืนค่าที่แยกได้ (null = รูปแบบผิด / token เก่ากว่า minToken)
+        Presence pr;
         try {
-            String body = payload.split("presence:\\s*")[1]; // แยกเอาเฉพาะส่วนที่เป็นข้อมูลจริง | split("presence:\\s*") = แยกข้อความโดยใช้ "presence:" ตามด้วยช่องว่าง 0 ตัวขึ้นไป เป็นตัวแบ่ง
-            String[] parts = body.split("\\|"); // แยกเอา leaderPid กับ รายการสมาชิก | split("\\|", 2) = แยกข้อความโดยใช้ | เป็นตัวแบ่ง โดยแยกได้สูงสุด 2 ส่วน
-            long leader = Long.parseLong(parts[0].trim()); //เอาleaderPidออกมา | trim() = ตัดช่องว่างออก
-            String members = parts.length > 1 ? parts[1] : ""; //เอารายการสมาชิกออกมา ถ้าไม่มีให้เป็นค่าว่าง
-            // พิมพ์ตารางสมาชิก
-            System.out.printf("%n[%-10s|PRESENCE] --- cluster members --- %s%n", localName, Instant.now()); // instant.now() = เวลาปัจจุบันแบบ iso
-            System.out.printf("%-8s  %-20s  %-8s  %-6s%n", "PID", "NAME", "ROLE", "STATUS");
-            System.out.println("-------------------------------------------------------");
-            if (!members.isEmpty()) {
-                for (String item : members.split(",")) {
-                    if (item.isBlank()) continue;
-                    String[] kv = item.split(":"); //แยก pid, name, alive | split(":") = แยกข้อความโดยใช้ : เป็นตัวแบ่ง
-                    long pid = Long.parseLong(kv[0]);
-                    String name = kv.length > 1 ? kv[1] : ("node-" + pid);
-                    int alive = (kv.length > 2) ? Integer.parseInt(kv[2]) : 1; // ถ้าไม่มีข้อมูล alive ให้ถือว่า alive=1 (ปลอดภัยไว้ก่อน)
-                    String role = (pid == leader) ? "BOSS" : "WORKER"; // ถ้า pid ตรงกับ leaderPid ให้ role = BOSS ถ้าไม่ตรงให้ role = WORKER
-                    String status = (alive == 1) ? "ALIVE" : "DISAPPEAR"; // ถ้า alive=1 ให้ status=ALIVE ถ้า alive=0 ให้ status=DISAPPEAR
-                    System.out.printf("%-8d  %-20s  %-8s  %-6s%n", pid, name, role, status); //%-8d = เว้นวรรค8ช่องสำหรับตัวเลข | %-20s = เว้นวรรค20ช่องสำหรับstring | %-6s = เว้นวรรค6ช่องสำหรับstring
+            pr = parsePresence(payload);
+        } catch (Exception ignore) {
+            LOG.printf("[%-10s|PRESENCE] %s%n", localName, payload);
+            return null;
+        }
+        if (pr.token < minToken) return null; // ตารางจาก leader ที่ถูกแทนแล้ว (fenced) ไม่พิมพ์ ไม่จำ
+        printPresenceTable(localName, pr);
+        return pr;
+    }
+
+    // --------- Binary presence (--presence-format binary) ---------
+    /*  รูปแบบ v3 (ส่งผ่าน publish/subscribe แบบ byte[] ที่ช่อง presence:bin)
+            byte    version = 3
+            byte    type    = 0 FULL (ทั้งตาราง) | 1 DELTA (เฉพาะที่เปลี่ยน)
+            long    epoch   (8 byte) สุ่มใหม่ทุกครั้งที่ผู้ส่งเริ่มส่ง → ผู้รับรู้ว่าต้องรอ FULL ก่อน
+            varlong seq     เลขลำดับข้อความใน epoch เดียวกัน (ขาดไป 1 = ต้องรอ FULL รอบถัดไป)
+            varlong from    pid ของผู้ส่ง
+            varlong token   fencing token ที่ผู้ส่งรู้ (--election lease, 0 = ไม่มี) ผู้รับทิ้งข้อความที่ token เก่ากว่าที่ตัวเองรู้
+            varlong leaderPid (zigzag เพราะอาจเป็น -1)
+            varint  count
+            FULL : count x [varlong pid][byte alive][varint len][utf-8 name]
+            DELTA: count x [byte op][varlong pid] + JOIN: [byte alive][varint len][name] | STATUS: [byte alive] | LEAVE: -
+        ขนาดข้อความ DELTA ขึ้นกับจำนวนที่เปลี่ยน (churn) ไม่ใช่ขนาด cluster  */
+    static final class PresenceCodec {
+        static final byte VERSION = 3;
+        static final byte FULL = 0, DELTA = 1;
+        static final byte JOIN = 1, LEAVE = 2, STATUS = 3;
+
+        static void writeVarLong(java.io.ByteArrayOutputStream out, long v) {
+            while ((v & ~0x7FL) != 0) { out.write((int) ((v & 0x7F) | 0x80)); v >>>= 7; }
+            out.write((int) v);
+        }
+        static long readVarLong(java.nio.ByteBuffer in) {
+            long v = 0; int shift = 0; byte b;
+            do { b = in.get(); v |= (long) (b & 0x7F) << shift; shift += 7; } while ((b & 0x80) != 0);
+            return v;
+        }
+        static long zigzag(long v) { return (v << 1) ^ (v >> 63); }
+        static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+        static void writeName(java.io.ByteArrayOutputStream out, String name) {
+            byte[] b = name.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            writeVarLong(out, b.length);
+            out.write(b, 0, b.length);
+        }
+        static String readName(java.nio.ByteBuffer in) {
+            int len = (int) readVarLong(in);
+            String s = new String(in.array(), in.arrayOffset() + in.position(), len, java.nio.charset.StandardCharsets.UTF_8);
+            in.position(in.position() + len);
+            return s;
+        }
+    }
+
+    static class PresenceEncoder { // ฝั่งผู้ส่ง (leader): จำตารางที่ส่งไปล่าสุด แล้วส่งแค่ส่วนต่าง
+        final int fullEvery; // ส่ง FULL ทุก ๆ กี่ข้อความ (ให้คนที่หลุด/เพิ่งเข้ามาตามทัน)
+        long epoch; long seq; int sinceFull;
+        Map<Long, Member> prev = new HashMap<>();
+
+        PresenceEncoder(int fullEvery) { this.fullEvery = Math.max(1, fullEvery); reset(); }
+
+        void reset() { // เริ่ม epoch ใหม่ → ข้อความถัดไปเป็น FULL เสมอ
+            epoch = new Random().nextLong();
+            seq = 0;
+            sinceFull = Integer.MAX_VALUE;
+            prev = new HashMap<>();
+        }
+
+        byte[] encode(long from, long leaderPid, long token, List<Member> members) {
+            boolean full = sinceFull >= fullEvery - 1;
+            java.io.ByteArrayOutputStream body = new java.io.ByteArrayOutputStream(16 + (full ? members.size() * 16 : 32));
+            int count = 0;
+            Map<Long, Member> next = new HashMap<>(members.size() * 2);
+            for (Member m : members) {
+                next.put(m.pid, m);
+                Member old = prev.get(m.pid);
+                if (full || old == null) { // FULL หรือเพิ่งเข้ามา → ส่งข้อมูลเต็มของสมาชิกนี้
+                    if (!full) body.write(PresenceCodec.JOIN);
+                    PresenceCodec.writeVarLong(body, m.pid);
+                    body.write(m.alive ? 1 : 0);
+                    PresenceCodec.writeName(body, m.name);
+                    count++;
+                } else if (old.alive != m.alive) { // สถานะเปลี่ยน ALIVE ↔ DISAPPEAR
+                    body.write(PresenceCodec.STATUS);
+                    PresenceCodec.writeVarLong(body, m.pid);
+                    body.write(m.alive ? 1 : 0);
+                    count++;
                 }
+            }
+            if (!full) {
+                for (Long pid : prev.keySet()) {
+                    if (!next.containsKey(pid)) { // ถูกลบออกจาก cluster แล้ว
+                        body.write(PresenceCodec.LEAVE);
+                        PresenceCodec.writeVarLong(body, pid);
+                        count++;
+                    }
+                }
+            }
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream(24 + body.size());
+            out.write(PresenceCodec.VERSION);
+            out.write(full ? PresenceCodec.FULL : PresenceCodec.DELTA);
+            for (int i = 56; i >= 0; i -= 8) out.write((int) (epoch >>> i));
+            PresenceCodec.writeVarLong(out, seq++);
+            PresenceCodec.writeVarLong(out, from);
+            PresenceCodec.writeVarLong(out, token);
+            PresenceCodec.writeVarLong(out, PresenceCodec.zigzag(leaderPid));
+            PresenceCodec.writeVarLong(out, count);
+            out.writeBytes(body.toByteArray());
+            prev = next;
+            sinceFull = full ? 0 : sinceFull + 1;
+            return out.toByteArray();
+        }
+    }
+
+    static class PresenceDecoder { // ฝั่งผู้รับ: เก็บตารางแยกตามผู้ส่ง แล้วเอา DELTA ของผู้ส่งนั้นมาแก้ทีละรายการ
+        static final long IDLE_MS = 60_000; // ผู้ส่งที่เงียบไปนานกว่านี้ → ลืมตาราง (ส่งใหม่ก็เริ่มจาก FULL อยู่แล้ว)
+
+        static class Sender { // สถานะของผู้ส่ง 1 คน (--presence all = ทุกโหนดส่ง แต่ละคนมี epoch / seq ของตัวเอง)
+            long epoch; long lastSeq = -1; boolean synced = false; long seenAt;
+            final TreeMap<Long, Member> members = new TreeMap<>(Comparator.reverseOrder()); // pid มาก→น้อย เหมือนตารางเดิม
+        }
+
+        final Map<Long, Sender> senders = new HashMap<>();
+        long leaderPid = -1, from = -1, token = 0; // จาก header ของข้อความล่าสุด
+        long lastPrune = 0;
+
+        /** คืน presence ล่าสุดของผู้ส่งข้อความนี้ | null = ยังไม่ sync (ข้อความหายหรือยังไม่เคยได้ FULL) ต้องรอ FULL รอบถัดไป */
+        Presence apply(byte[] msg) {
+            java.nio.ByteBuffer in = java.nio.ByteBuffer.wrap(msg);
+            if (in.get() != PresenceCodec.VERSION) throw new IllegalArgumentException("unknown presence version");
+            byte type = in.get();
+            long ep = in.getLong();
+            long seq = PresenceCodec.readVarLong(in);
+            from = PresenceCodec.readVarLong(in);
+            token = PresenceCodec.readVarLong(in);
+            leaderPid = PresenceCodec.unzigzag(PresenceCodec.readVarLong(in));
+            int count = (int) PresenceCodec.readVarLong(in);
+            long now = System.currentTimeMillis();
+            if (now - lastPrune > 1000) { // ไม่ไล่ทุกข้อความ (--presence all มี N ผู้ส่ง)
+                senders.values().removeIf(s -> now - s.seenAt > IDLE_MS);
+                lastPrune = now;
+            }
+            Sender s = senders.computeIfAbsent(from, k -> new Sender());
+            s.seenAt = now;
+            TreeMap<Long, Member> members = s.members;
+            if (type == PresenceCodec.FULL) {
+                members.clear();
+                for (int i = 0; i < count; i++) {
+                    long pid = PresenceCodec.readVarLong(in);
+                    boolean alive = in.get() == 1;
+                    members.put(pid, new Member(pid, PresenceCodec.readName(in), alive, 0L));
+                }
+                s.synced = true;
+            } else if (!s.synced || ep != s.epoch || seq != s.lastSeq + 1) { // ข้ามไป 1 ข้อความหรือผู้ส่งเริ่ม epoch ใหม่ → ตารางเชื่อไม่ได้แล้ว
+                s.synced = false;
+                return null;
             } else {
-                System.out.println("(no members)");
+                for (int i = 0; i < count; i++) {
+                    byte op = in.get();
+                    long pid = PresenceCodec.readVarLong(in);
+                    if (op == PresenceCodec.JOIN) {
+                        boolean alive = in.get() == 1;
+                        members.put(pid, new Member(pid, PresenceCodec.readName(in), alive, 0L));
+                    } else if (op == PresenceCodec.STATUS) {
+                        boolean alive = in.get() == 1;
+                        Member old = members.get(pid);
+                        if (old != null) members.put(pid, new Member(pid, old.name, alive, 0L));
+                    } else if (op == PresenceCodec.LEAVE) {
+                        members.remove(pid);
+                    }
+                }
+            }
+            s.epoch = ep;
+            s.lastSeq = seq;
+            return new Presence(leaderPid, new ArrayList<>(members.values()), from, token);
+        }
+    }
+
+    static class PresenceListener implements Runnable { // thread รับ presence แบบ binary (ต้องใช้ BinaryJedisPubSub แยก connection กับ Subscriber)
+        final Args args; final State st; final JedisPool pool;
+        final PresenceDecoder decoder = new PresenceDecoder();
+        final Subscriber sub; // ส่งตารางที่ถอดแล้วเข้า dispatch pipeline ของ Subscriber
+        PresenceListener(Args a, State s, JedisPool p, Subscriber sub) { this.args = a; this.st = s; this.pool = p; this.sub = sub; }
+
+        @Override public void run() {
+            Backoff backoff = new Backoff(200, args.retryMaxMs);
+            while (!allDown() && !Thread.currentThread().isInterrupted()) { // ใช้ร่วมกันทุกโหนดในโปรเซส → หยุดเมื่อทุกโหนดปิด
+                try (Jedis jedis = pool.getResource()) {
+                    BinaryJedisPubSub bps = new BinaryJedisPubSub() {
+                        @Override public void onMessage(byte[] ch, byte[] msg) {
+                            METRICS.received("presence:bin");
+                            try {
+                                Presence pr = decoder.apply(msg); // delta ถอดบน thread นี้ (เร็ว + ต้องเรียงลำดับ) ส่วนพิมพ์ตารางส่งต่อให้ worker
+                                if (pr != null) {
+                                    for (State s : LOCAL_NODES) if (!fenced(args, s, pr)) s.view.update(pr);
+                                    if (!fenced(args, st, pr)) sub.deliverPresence(pr);
+                                } else {
+                                    for (State s : LOCAL_NODES) {
+                                        if (!"lease".equals(args.election) || decoder.token >= s.fencingToken) s.view.touch(decoder.leaderPid); // leader ยังส่งอยู่ แค่ตารางเราขาดช่วง → รอ FULL
+                                    }
+                                }
+                            } catch (Exception e) {
+                                System.err.printf("[%-10s|PRESENCE] bad binary presence: %s%n", st.name, e.getMessage());
+                            }
+                        }
+                    };
+                    backoff.reset();
+                    jedis.subscribe(bps, CH_PRESENCE_BIN);
+                } catch (Exception e) {
+                    METRICS.reconnect("presence-bin");
+                    long d = backoff.next();
+                    System.err.printf("[%-10s|PRES] error: %s (retry %dms)%n", st.name, e.getMessage(), d);
+                    sleepMs(d);
+                }
+            }
+        }
+    }
+
+    // --------- Failure detector (--failure-detector phi) ---------
+    /*  phi accrual: จำระยะห่างระหว่าง heartbeat ของแต่ละโหนด (ดูจาก lastSeen ที่เปลี่ยน) แล้วถามว่า
+        ระยะห่าง = เวลาที่ "เรา" เห็น lastSeen เปลี่ยน วัดด้วยนาฬิกาของเราเอง (lastSeen เป็นเวลาของเครื่องผู้ส่ง ใช้แค่ดูว่าเปลี่ยนไหม)
+        → นาฬิกาเครื่องอื่นเดินเร็ว/ช้ากว่าเราเท่าไรก็ไม่มีผล | ละเอียดได้แค่ 1 tick ของเรา (อ่าน snapshot ทุก tick)
+        "ที่เงียบไปนานขนาดนี้ ผิดปกติแค่ไหน" phi = -log10(โอกาสที่ heartbeat จะมาช้าได้ขนาดนี้)
+        เครือข่ายกระตุกบ่อย → ส่วนเบี่ยงเบนมาตรฐานสูง → ทนได้นานขึ้นเอง | เครือข่ายนิ่ง → ตัดสินได้เร็ว (ใช้ tick ต่ำกว่า 1 วินาทีได้)  */
+    static class PhiAccrualDetector {
+        static final int WINDOW = 100; // จำระยะห่างล่าสุดกี่ค่า
+        final double threshold; final long expectedMs; final double minStdMs;
+        final Map<Long, History> hist = new HashMap<>();
+
+        static class History {
+            long lastSeen; // ค่า lastSeen ล่าสุดที่เห็น (เวลาของผู้ส่ง ใช้เทียบว่าเปลี่ยนไหมเท่านั้น)
+            long arrivedAt; // เวลาของเรา (ms, monotonic) ที่เห็น lastSeen เปลี่ยนล่าสุด | 0 = ยังไม่เคยเห็น
+            final ArrayDeque<Long> intervals = new ArrayDeque<>();
+            double sum, sumSq;
+        }
+
+        PhiAccrualDetector(double threshold, long expectedMs) {
+            this.threshold = threshold;
+            this.expectedMs = expectedMs;
+            this.minStdMs = Math.max(50, expectedMs / 10.0); // กัน std เป็น 0 ตอนเครือข่ายนิ่งมาก (ไม่งั้นช้านิดเดียวก็ตาย)
+        }
+
+        void heartbeat(long pid, long lastSeen, long now) { // lastSeen เปลี่ยน = ได้ heartbeat ใหม่ 1 ครั้ง ณ เวลา now (ของเรา)
+            History h = hist.computeIfAbsent(pid, k -> new History());
+            if (h.arrivedAt != 0 && lastSeen == h.lastSeen) return; // เปลี่ยนแบบถอยหลังก็นับ (นาฬิกาผู้ส่งถูกตั้งใหม่)
+            if (h.arrivedAt != 0) {
+                long iv = now - h.arrivedAt;
+                h.intervals.addLast(iv); h.sum += iv; h.sumSq += (double) iv * iv;
+                if (h.intervals.size() > WINDOW) { long old = h.intervals.removeFirst(); h.sum -= old; h.sumSq -= (double) old * old; }
+            }
+            h.lastSeen = lastSeen;
+            h.arrivedAt = now;
+        }
+
+        double phi(long pid, long now) { // now = นาฬิกาเดียวกับที่ส่งให้ heartbeat
+            History h = hist.get(pid);
+            if (h == null || h.arrivedAt == 0) return 0;
+            int n = h.intervals.size();
+            double mean = n > 0 ? h.sum / n : expectedMs; // ยังไม่มีข้อมูล → เดาว่ามาตามรอบ tick
+            double std = n > 1 ? Math.sqrt(Math.max(0, h.sumSq / n - mean * mean)) : expectedMs / 4.0;
+            std = Math.max(std, minStdMs);
+            double y = (now - h.arrivedAt - mean) / std;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y)); // ประมาณ CDF ของ normal (logistic approximation)
+            return (now - h.arrivedAt > mean) ? -Math.log10(e / (1.0 + e)) : -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+
+        boolean isAvailable(long pid, long now) { return phi(pid, now) < threshold; }
+
+        void retain(List<Member> members) { // ลืมโหนดที่ถูกลบออกจาก cluster แล้ว
+            Set<Long> keep = new HashSet<>();
+            for (Member m : members) keep.add(m.pid);
+            hist.keySet().retainAll(keep);
+        }
+    }
+
+    // --------- Scheduler ---------
+    static class Scheduler { // งานเป็นรอบ (Publisher, Coordinator) แทน while + sleep(วินาที): ละเอียดระดับ ms และไม่ต้องจอง thread ไว้รอ
+        final ScheduledExecutorService timer; // แค่จับเวลา แล้วส่งงานให้ workers (ไม่รันงานเอง)
+        final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor(); // 1 รอบ = 1 virtual thread → รอ Redis/pool ได้โดยไม่จอง platform thread (--nodes 1000 ก็พอ)
+
+        Scheduler(int threads) {
+            timer = Executors.newScheduledThreadPool(threads, r -> { Thread t = new Thread(r, "sched"); t.setDaemon(true); return t; });
+        }
+
+        void every(State st, String tag, long periodMs, long retryMaxMs, Runnable task) { // เรียก task ทุก periodMs | error → พิมพ์แล้วรอตาม backoff
+            every(st, tag, periodMs, retryMaxMs, 0, task);
+        }
+
+        void every(State st, String tag, long periodMs, long retryMaxMs, long startDelayMs, Runnable task) { // startDelayMs: --nodes เกลี่ยเวลาเริ่มไม่ให้ทุกโหนด tick พร้อมกัน
+            Loop loop = new Loop(st, tag, periodMs, new Backoff(Math.min(200, periodMs), retryMaxMs), task);
+            loop.nextNs += TimeUnit.MILLISECONDS.toNanos(startDelayMs);
+            loop.schedule(TimeUnit.MILLISECONDS.toNanos(startDelayMs));
+        }
+
+        class Loop implements Runnable {
+            final State st; final String tag; final long periodNs; final Backoff backoff; final Runnable task;
+            long nextNs = System.nanoTime(); // เวลาที่ควรเริ่มรอบถัดไป (fixed rate: tick ที่ช้าไม่ทำให้รอบถัด ๆ ไปเลื่อนตาม)
+            Loop(State st, String tag, long periodMs, Backoff backoff, Runnable task) {
+                this.st = st; this.tag = tag; this.periodNs = TimeUnit.MILLISECONDS.toNanos(periodMs); this.backoff = backoff; this.task = task;
+            }
+
+            void schedule(long delayNs) { if (!st.shuttingDown) timer.schedule(() -> workers.execute(this), delayNs, TimeUnit.NANOSECONDS); }
+
+            @Override public void run() {
+                if (st.shuttingDown) return;
+                try {
+                    task.run();
+                    backoff.reset();
+                    long now = System.nanoTime();
+                    nextNs = Math.max(nextNs + periodNs, now); // ช้าเกินรอบไปแล้ว → เริ่มทันทีแต่ไม่รัวชดเชย
+                    schedule(nextNs - now);
+                } catch (Exception e) {
+                    METRICS.loopError(tag);
+                    long d = backoff.next();
+                    System.err.printf("[%-10s|%s] error: %s (retry %dms)%n", st.name, tag, e.getMessage(), d);
+                    nextNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(d);
+                    schedule(TimeUnit.MILLISECONDS.toNanos(d));
+                }
             }
-            System.out.println("-------------------------------------------------------\n");
-        } catch (Exception ignore) {
-            System.out.printf("[%-10s|PRESENCE] %s%n", localName, payload);
         }
     }
 
     // --------- Utilities ---------
-    static void logRole(State st) {
+    static void logRole(State st) { // เรียกทุกครั้งที่ leader เปลี่ยน
+        METRICS.leaderChanged();
+        if (!st.verbose) return;
         String role = st.isLeader ? "BOSS" : "WORKER";
-        System.out.printf("[%-10s|ROLE] now %s (leaderPid=%d, myPid=%d)%n",
-                st.name, role, st.leaderPid, st.pid);
+        LOG.printf("[%-10s|ROLE] now %s (leaderPid=%d, myPid=%d, token=%d)%n",
+                st.name, role, st.leaderPid, st.pid, st.fencingToken);
+    }
+
+    static void onLeaderAnnounce(State st, String msg) { // "control:leader <pid> <token>" | "-1 <token>" = leader ปล่อย lease แล้ว
+        String[] parts = msg.split("\\s+");
+        if (parts.length < 3) return; // ข้อความแบบเก่าไม่มี token → ไม่เชื่อ (รอ tick ถัดไปอ่านจาก Redis)
+        long pid = Long.parseLong(parts[1]);
+        long token = Long.parseLong(parts[2]);
+        if (token < st.fencingToken) return; // ประกาศเก่า (fenced) ข้ามไป
+        boolean changed = pid != st.leaderPid;
+        st.fencingToken = token;
+        st.leaderPid = pid;
+        st.isLeader = (pid == st.pid);
+        if (changed) logRole(st);
     }
 
     static void shutdownNow(State st) {
-        st.shuttingDown = true;
+        st.shuttingDown = true; // --nodes: โหนดนี้หยุด tick (heartbeat หมดอายุเหมือนตายกะทันหัน) โหนดอื่นในโปรเซสทำงานต่อ
+        if (!allDown()) return;
         new Thread(() -> { sleep(1); System.exit(0); }, "exit").start(); // สร้างเธรดใหม่ชื่อ exit เพื่อรอ 1 วินาทีแล้วปิดโปรแกรม
     }
 
+    static void leave(Jedis j, Args args, State st) { // ตอนปิดโปรแกรม (Ctrl+C): ลบเฉพาะ HB; คง member + info ไว้ให้ coordinator ตัดออกหลัง 20s
+        if ("score".equals(args.membership)) {
+            // deadline = ที่ผ่านมาแล้ว → DISAPPEAR ทันที (XX = ไม่เพิ่มถ้าถูกลบไปแล้ว) แล้วจะถูกลบออกหลัง --remove-delay-ms (~20s)
+            touchSeen(j, SEEN_MEMBER(st.pid, st.name), -1, true);
+        } else {
+            j.del(HB_KEY(st.pid));
+        }
+        if (st.isLeader && "lease".equals(args.election)) { // ปล่อย lease ทันที คนอื่นไม่ต้องรอ lease หมดอายุ
+            Coordinator.RELEASE_SCRIPT.eval(j, List.of(LEADER_KEY), List.of(st.pid + ":" + st.fencingToken));
+            send(j, args, CH_CONTROL, "control:leader -1 " + st.fencingToken);
+        } else if (st.isLeader) send(j, args, CH_CONTROL, "control:leader -1");
+    }
+
+    static boolean allDown() { // ทุกโหนดในโปรเซสปิดแล้ว
+        for (State s : LOCAL_NODES) if (!s.shuttingDown) return false;
+        return true;
+    }
+
     static List<Long> aliveMembers(Jedis j) { // ดึงสมาชิกที่ยังมี heartbeat อยู่
         List<Long> pids = j.zrevrange(ZSET_MEMBERS, 0, -1).stream().map(Long::parseLong).collect(Collectors.toList()); 
         // มาก→น้อย .stream() = เอาข้อมูลในlistมาใช้ .map(Long::parseLong) = แปลงstringเป็นlong .collect(Collectors.toList()) = เก็บกลับเป็นlist
         List<Long> alive = new ArrayList<>(); 
-        for (Long pid : pids) if (j.ttl(HB_KEY(pid)) > 0) alive.add(pid);
+        for (Long pid : pids) if (j.pttl(HB_KEY(pid)) > 0) alive.add(pid);
+        METRICS.call(1 + pids.size());
         return alive; // มาก→น้อย
     }
 
     static void sleep(int s) { try { TimeUnit.SECONDS.sleep(s); } catch (InterruptedException ignored) {} } 
+    static void sleepMs(long ms) { try { TimeUnit.MILLISECONDS.sleep(ms); } catch (InterruptedException ignored) {} } // ใช้กับ backoff ที่ละเอียดกว่าวินาที
     /*
         TimeUnit.SECONDS.sleep(s);
         ใช้ TimeUnit จาก java.util.concurrent
@@ -330,29 +2011,67 @@ public class NodeApp{
         //     try { pid = Long.parseLong(ManagementFactory.getRuntimeMXBean().getName().split("@")[0]); }
         //     catch (Exception ignore) {}
         // }
-        if (pid < 0) pid = new Random().nextInt(1_000_000); 
+        Random rnd = new Random();
+        if (pid < 0) pid = rnd.nextInt(1_000_000); 
 
-        State st = new State(pid, args.name); // สร้าง process
+        Set<Long> pids = new HashSet<>();
+        for (int i = 0; i < args.nodes; i++) { // --nodes N: State แยกกันทุกอย่าง (pid, leader, token, view) ใช้ร่วมแค่ connection
+            while (!pids.add(pid)) pid = rnd.nextInt(1_000_000); // pid ซ้ำในโปรเซสเดียวกันไม่ได้
+            State s = new State(pid, args.nodes == 1 ? args.name : args.name + "-" + i); // สร้าง process
+            s.verbose = (i == 0);
+            s.view.maxAgeMs = args.tickMs * 5 / 2; // presence มาทุก tick → เงียบเกิน 2.5 tick = leader หาย
+            LOCAL_NODES.add(s);
+            pid = rnd.nextInt(1_000_000);
+        }
+        State st = LOCAL_NODES.get(0); // โหนดแรก: พิมพ์ log + ตัวส่งแบบ batch
         System.out.printf("Start '%s' pid=%d -> redis %s:%d (auth=%s)%n",
-                args.name, pid, args.host, args.port, (args.pass != null ? "yes" : "no"));
+                st.name, st.pid, args.host, args.port, (args.pass != null ? "yes" : "no"));
+        if (args.nodes > 1) System.out.printf("[%-10s|NODES] simulating %d nodes in this process (pool-size %d)%n", st.name, args.nodes, args.poolSize);
+
+        JedisPool redis = newPool(args); // connection ทั้งหมดของโปรเซสมาจาก pool นี้
+        BatchPublisher batch = "batch".equals(args.publishMode) ? new BatchPublisher(args, st, redis) : null;
+        ProbeTracker probe = args.probe ? new ProbeTracker(st.name) : null;
 
         // shutdown hook: เอาแบบ “ไม่ลบสมาชิกทันที” เพื่อให้ DEAD ค้างในตาราง 20s
         Runtime.getRuntime().addShutdownHook(new Thread(() -> { // Runtime.getRuntime().addShutdownHook = เพิ่ม shutdown hook เพื่อทำงานเมื่อโปรแกรมกำลังจะปิดตัว | Ctrl+C
-            st.shuttingDown = true;
-            try (Jedis j = newJedis(args.host, args.port, args.pass)) {
-                // ลบเฉพาะ HB; คง member + info ไว้ให้ coordinator ตัดออกหลัง 20s
-                j.del(HB_KEY(st.pid));
-                if (st.isLeader) j.publish(CH_CONTROL, "control:leader -1");
+            List<State> leaving = new ArrayList<>();
+            for (State s : LOCAL_NODES) { if (!s.shuttingDown) leaving.add(s); s.shuttingDown = true; } // ที่ปิดไปก่อนแล้ว (KILL) ปล่อยให้หมดอายุเอง
+            if (batch != null) batch.close(1000); // ส่งข้อความที่ค้างในคิวก่อนปิด pool
+            try (Jedis j = redis.getResource()) { // ใช้ connection ที่มีอยู่แล้วใน pool (pool-size เผื่อไว้ให้ hook นี้ 1 เส้น)
+                for (State s : leaving) leave(j, args, s);
             } catch (Exception ignore) {}
+            redis.close(); // ปิด connection ทั้งหมดใน pool
+            if (probe != null) LOG.print(probe.report(true)); // รายงานสุดท้าย (ตั้งแต่เริ่ม)
+            LOG.flush(); // พิมพ์ log ที่ค้างในคิวให้หมดก่อนจบ
             System.out.printf("[%-10s|SHUT] done%n", st.name);
         }));
 
-        ExecutorService pool = Executors.newFixedThreadPool(4); //ExecutorService = จัดการเธรดแบบกลุ่ม
-        // สร้างเธรด 4 ตัว: Subscriber, Publisher, Coordinator,
-        pool.submit(new Subscriber(args, st));
-        pool.submit(new Publisher(args, st));
-        pool.submit(new Coordinator(args, st));
-      
+        startMetrics(args, st);
+        if ("lease".equals(args.election) && args.leaseMs <= args.tickMs) {
+            System.err.printf("[%-10s|ARGS] --lease-ms %d <= --tick-ms %d: leader will lose its lease between renewals%n", st.name, args.leaseMs, args.tickMs);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(6); //ExecutorService = จัดการเธรดแบบกลุ่ม
+        // เธรดที่บล็อกรอข้อความ (ใช้ร่วมกันทุกโหนด): Subscriber (+ PresenceListener ถ้า binary, + StreamSubscriber ถ้า streams)
+        Subscriber sub = new Subscriber(args, st, redis, probe);
+        pool.submit(sub);
+        if ("streams".equals(args.transport)) pool.submit(new StreamSubscriber(args, st, redis, sub));
+        if ("binary".equals(args.presenceFormat)) pool.submit(new PresenceListener(args, st, redis, sub));
+
+        // งานเป็นรอบ: Publisher ทุก --publish-ms, Coordinator ทุก --tick-ms (ละเอียดระดับ ms) | รันบน virtual thread
+        Scheduler sched = new Scheduler(2);
+        if (probe != null) sched.every(st, "PROBE", args.probeReportMs, args.retryMaxMs, args.probeReportMs, () -> LOG.print(probe.report(false)));
+        if (batch != null) { // batch: flusher + ตัวสร้างข้อความ ใช้ thread ของตัวเอง (เฉพาะโหนดแรก)
+            pool.submit(batch.flusher());
+            if (args.publishRate > 0) pool.submit(batch.generator());
+            sched.every(st, "BATCH", 5000, args.retryMaxMs, batch.reporter());
+        }
+        for (int i = 0; i < LOCAL_NODES.size(); i++) {
+            State s = LOCAL_NODES.get(i);
+            long offset = args.tickMs * i / LOCAL_NODES.size(); // เกลี่ย tick ของแต่ละโหนดให้ทั่วรอบ
+            if (batch == null) sched.every(s, "PUB", args.publishMs, args.retryMaxMs, offset % args.publishMs, new Publisher(args, s, redis));
+            sched.every(s, "COORD", args.tickMs, args.retryMaxMs, offset, new Coordinator(args, s, redis));
+        }
 
         try { pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS); }
         catch (InterruptedException ignored) {}